@@ -1,5 +1,7 @@
 import java.util.Set;
 import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.io.Serializable;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -13,9 +15,11 @@ import java.io.FileOutputStream;
  */
 
 class Branch implements Serializable {
+    private static final long serialVersionUID = -2883315006783787473L;
+
     public String name;                              // Branch name
     public Commit head;                              // Head commit of the branch
-    private transient Set<String> addedFiles;        // Files marked to be added
+    private transient Map<String, FileInfo> addedFiles; // Files marked to be added, with the snapshot taken when added
     private transient Set<String> removedFiles;      // Files marked to be removed
 
     /**
@@ -28,18 +32,34 @@ class Branch implements Serializable {
         if (h != null) {
             head.numChildren += 1;
         }
-        addedFiles = new HashSet<String>();
+        addedFiles = new HashMap<String, FileInfo>();
         removedFiles = new HashSet<String>();
         Util.createDirectory(getBranchPath());
         save();
     }
 
+    /**
+     * Constructs a branch that already exists on disk.
+     */
+    private Branch(String n, Commit h) {
+        name = n;
+        head = h;
+    }
+
+    /**
+     * Returns the existing branch with given name and head commit. Its staged
+     * files are loaded when first needed.
+     */
+    public static Branch open(String n, Commit h) {
+        return new Branch(n, h);
+    }
+
     /**
      * Returns true if given file is marked to be added, false otherwise.
      */
     public boolean isFileMarkedAdded(String fileName) {
         load();
-        return addedFiles.contains(fileName);
+        return addedFiles.containsKey(fileName);
     }
 
     /**
@@ -66,11 +86,21 @@ class Branch implements Serializable {
     }
 
     /**
-     * Loads a collection of addedFiles and removedFiles from disk.
+     * Loads a collection of addedFiles and removedFiles from disk. Files
+     * staged before snapshots were taken at add time are kept without one,
+     * and are snapshotted when committed.
      */
     private void load() {
         if (addedFiles == null || removedFiles == null) {
-            addedFiles = (Set<String>) Util.deserialize(getBranchPath() + "/addedFiles.ser");
+            Object added = Util.deserialize(getBranchPath() + "/addedFiles.ser");
+            if (added instanceof Set) {
+                addedFiles = new HashMap<String, FileInfo>();
+                for (String fileName : (Set<String>) added) {
+                    addedFiles.put(fileName, null);
+                }
+            } else {
+                addedFiles = (Map<String, FileInfo>) added;
+            }
             removedFiles = (Set<String>) Util.deserialize(getBranchPath() + "/removedFiles.ser");
         }
     }
@@ -79,16 +109,30 @@ class Branch implements Serializable {
      * Saves addedFiles and removedFiles to disk.
      */
     private void save() {
-        Util.serialize(addedFiles, getBranchPath() + "/addedFiles.ser");
-        Util.serialize(removedFiles, getBranchPath() + "/removedFiles.ser");
+        try {
+            Util.serialize(addedFiles, getBranchPath() + "/addedFiles.ser");
+            Util.serialize(removedFiles, getBranchPath() + "/removedFiles.ser");
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
     }
 
     /**
-     * Marks a file to be tracked.
+     * Marks a file to be tracked, with the snapshot of its content.
      */
-    public void markAddFile(String fileName) {
+    public void markAddFile(String fileName, FileInfo snapshot) {
         load();
-        addedFiles.add(fileName);
+        addedFiles.put(fileName, snapshot);
+        save();
+    }
+
+    /**
+     * Marks many files to be tracked at once, saving the staged files only
+     * once.
+     */
+    public void markAddFiles(Map<String, FileInfo> snapshots) {
+        load();
+        addedFiles.putAll(snapshots);
         save();
     }
 
@@ -109,7 +153,7 @@ class Branch implements Serializable {
      */
     public void printAddedFiles() {
         load();
-        for (String file : addedFiles) {
+        for (String file : addedFiles.keySet()) {
             System.out.println(file);
         }
     }
@@ -128,7 +172,7 @@ class Branch implements Serializable {
      * Removes all files from addFiles and removeFiles, also updates the disk.
      */
     public void emptyStagedFiles() {
-        addedFiles = new HashSet<String>();
+        addedFiles = new HashMap<String, FileInfo>();
         removedFiles = new HashSet<String>();
         save();
     }
@@ -138,7 +182,16 @@ class Branch implements Serializable {
      */
     public Set<String> getAddFiles() {
         load();
-        return addedFiles;
+        return addedFiles.keySet();
+    }
+
+    /**
+     * Returns the snapshot taken when given file was marked as tracked, or
+     * null if it has none.
+     */
+    public FileInfo getStagedFile(String fileName) {
+        load();
+        return addedFiles.get(fileName);
     }
 
     /**
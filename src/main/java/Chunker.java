@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content defined chunks with the FastCDC algorithm. Cut
+ * points depend only on the bytes around them, so an edit in the middle of a
+ * large file changes the chunks near the edit and leaves all others intact.
+ */
+
+class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVG_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    private static final long[] GEAR = new long[256];
+    private static final long MASK_SMALL = spreadMask(18); // harder to match below AVG_SIZE
+    private static final long MASK_LARGE = spreadMask(14); // easier to match above it
+
+    static {
+        Random random = new Random(0x6769746C6574L); // fixed seed, cut points must never change
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[2 * MAX_SIZE];
+    private int start;                               // First byte not yet returned
+    private int end;                                 // End of valid data in buffer
+    private boolean eof;
+
+    /**
+     * Constructs a chunker reading from IN.
+     */
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next chunk, or null once the stream is exhausted.
+     */
+    public byte[] next() throws IOException {
+        fill();
+        if (start == end) {
+            return null;
+        }
+        int length = cut(buffer, start, Math.min(end - start, MAX_SIZE));
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Makes sure at least MAX_SIZE bytes are buffered, unless the stream ends first.
+     */
+    private void fill() throws IOException {
+        if (end - start >= MAX_SIZE || eof) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                eof = true;
+                return;
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Returns the length of the chunk starting at OFFSET, given that LENGTH
+     * bytes are available.
+     */
+    private static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        long fingerprint = 0;
+        int i = MIN_SIZE;
+        int barrier = Math.min(AVG_SIZE, length);
+        for (; i < barrier; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((fingerprint & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((fingerprint & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns a mask with BITS bits set, spread over the upper 48 bits so that
+     * every bit depends on a window of several bytes.
+     */
+    private static long spreadMask(int bits) {
+        long mask = 0;
+        for (int i = 0; i < bits; i++) {
+            mask |= 1L << (63 - i * 48 / bits);
+        }
+        return mask;
+    }
+}
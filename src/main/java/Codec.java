@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to stored objects. The id of a codec is recorded in
+ * every object, so objects written with different settings can be read back
+ * side by side.
+ */
+
+enum Codec {
+    NONE(0) {
+        public OutputStream compress(OutputStream out, int level) {
+            return out;
+        }
+
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+    DEFLATE(1) {
+        public OutputStream compress(OutputStream out, int level) {
+            final Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                public void close() throws IOException {
+                    super.close();
+                    deflater.end();
+                }
+            };
+        }
+
+        public InputStream decompress(InputStream in) {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        }
+    };
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public final int id;                             // Id recorded in object headers
+
+    Codec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns a stream that compresses everything written to it into OUT.
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Returns a stream that decompresses what is read from IN.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Returns the codec with given id.
+     */
+    public static Codec fromId(int id) throws IOException {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown codec " + id);
+    }
+
+    /**
+     * Returns the codec selected in the repository settings.
+     */
+    public static Codec configured() {
+        Codec codec = forName(Config.get(Config.COMPRESSION, "deflate"));
+        return codec != null ? codec : DEFLATE;
+    }
+
+    /**
+     * Returns the codec of given name, or null if there is none.
+     */
+    public static Codec forName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the compression level selected in the repository settings.
+     */
+    public static int configuredLevel() {
+        return Config.getInt(Config.COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION);
+    }
+}
@@ -1,19 +1,33 @@
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by prakhash on 22/03/16.
  */
 
 class Commit implements Serializable {
+    private static final long serialVersionUID = 2937026338630469318L;
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     public String branchName;
     public int id;                                   // Commit ID
     public String message;                           // Commit message
-    public Commit parent;                            // Parent commit
+    private Commit parent;                           // Parent commit, read from the log when first needed
+    private int parentID;                            // Parent commit ID, -1 for the initial commit
     public int numChildren;                          // A reference counter
     public Calendar timestamp;                       // Time commit was made
-    private transient Map<String, FileInfo> files;   // Files staged in this commit
+    private transient FileTrie files;                // Files staged in this commit, sharing unchanged parts with the parent
+    private transient String tree;                   // Hash of the root tree, or null before it is read
 
     /**
      * Constructs a new commit given commit data.
@@ -23,12 +37,12 @@ class Commit implements Serializable {
         id = commit_id;
         message = m;
         parent = p;
-        files = f;
+        parentID = p == null ? -1 : p.id;
+        files = FileTrie.from(f);
         timestamp = Calendar.getInstance();
         numChildren = 0;
 
         Util.createDirectory(getCommitPath());
-        Util.createDirectory(getCommitPath() + "/files");
 
         save();
     }
@@ -37,53 +51,92 @@ class Commit implements Serializable {
         id = commit_id;
         message = m;
         parent = p;
-        files = f;
+        parentID = p == null ? -1 : p.id;
+        files = FileTrie.from(f);
         timestamp = Calendar.getInstance();
         numChildren = 0;
 
         Util.createDirectory(getCommitPath());
-        Util.createDirectory(getCommitPath() + "/files");
 
         save();
     }
 
+    /**
+     * Constructs a commit read back from the commit log. Nothing is written
+     * to disk, files are loaded when first needed.
+     */
+    public Commit(int commit_id, String m, int parent_id, long time, String branchName) {
+        this.branchName = branchName;
+        id = commit_id;
+        message = m;
+        parentID = parent_id;
+        timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(time);
+        numChildren = 0;
+    }
+
     /**
      * Constructs a normal new commit and performs the corresponding actions.
      */
     public Commit(int commit_id, String m, Branch b) {
-        this(commit_id, m, b.head, b.head == null ? new HashMap<String, FileInfo>() : b.head.getFiles(),b.name);
+        this(commit_id, m, b.head, b.head == null ? FileTrie.EMPTY : b.head.getFiles(),b.name);
 
+        SnapshotPipeline pipeline = null;            // Stores files staged without content by older versions
         for (String fileName : b.getAddFiles()) {
             FileInfo file = new FileInfo(fileName, id);
-            file.snapshot();
-            files.put(fileName, file);
+            FileInfo staged = b.getStagedFile(fileName);
+            if (staged != null) { // content was stored when it was added
+                file.md5 = staged.md5;
+                file.chunks = staged.chunks;
+            } else {
+                if (pipeline == null) {
+                    pipeline = new SnapshotPipeline();
+                }
+                pipeline.submit(file);
+            }
+            files = files.plus(fileName, file);
+        }
+        if (pipeline != null) {
+            try {
+                pipeline.finish();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // nothing was saved yet, so the command rolls back
+            }
         }
 
         for (String fileName : b.getRemovedFiles()) {
-            if (files.containsKey(fileName)) {
-                files.remove(fileName);
-            }
+            files = files.minus(fileName);
         }
 
         b.emptyStagedFiles();
         save();
     }
 
+    /**
+     * Returns the parent of this commit, or null for the initial commit.
+     */
+    public Commit getParent() {
+        if (parent == null && parentID >= 0) {
+            parent = CommitLog.get(parentID);
+        }
+        return parent;
+    }
+
+    /**
+     * Returns the ID of the parent of this commit, or -1 for the initial commit.
+     */
+    public int getParentID() {
+        return parent != null ? parent.id : parentID;
+    }
+
     /**
      * Returns the first common ancestor of the two supplied commits. If one
-     * does not exist, null will be returned.
+     * does not exist, null will be returned. Only the commits made since
+     * the two histories split are visited.
      */
     public static Commit firstCommonAncestor(Commit commit1, Commit commit2) {
-        List<Commit> splits1 = commit1.getSplits();
-        List<Commit> splits2 = commit2.getSplits();
-        for (int i = 0; i < splits1.size(); i++) {
-            for (int j = 0; j < splits2.size(); j++) {
-                if (splits1.get(i) == splits2.get(j)) {
-                    return splits1.get(i); // found
-                }
-            }
-        }
-        return null; // no common ancestor
+        int base = CommitGraph.mergeBase(commit1.id, commit2.id);
+        return base < 0 ? null : CommitLog.get(base);
     }
 
     /**
@@ -91,60 +144,135 @@ class Commit implements Serializable {
      * ID and timestamp will be the same.
      */
     public static Commit clone(int newCommitID, Commit commit) {
-        return new Commit(newCommitID, commit.message, commit.parent, commit.getFiles());
+        return new Commit(newCommitID, commit.message, commit.getParent(), commit.getFiles());
     }
 
     /**
-     * Loads a collection of files from disk.
+     * Loads a collection of files from disk. If the parent is already loaded,
+     * only the subtrees that differ from its tree are read. Commits made
+     * before trees existed keep their files in a serialized files.ser.
      */
     private void load() {
+        if (files == null && getTree() != null) {
+            try {
+                if (parent != null && parent.files != null && parent.getTree() != null) {
+                    files = apply(parent.files, Tree.diff(parent.tree, tree));
+                } else {
+                    files = Tree.readAll(tree);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         if (files == null) {
-            files = (Map<String, FileInfo>) Util.deserialize(getCommitPath() + "/files.ser");
+            files = FileTrie.from((Map<String, FileInfo>) Util.deserialize(getCommitPath() + "/files.ser"));
+        }
+    }
+
+    /**
+     * Returns FILES with CHANGES applied, where removed files map to null.
+     */
+    private static FileTrie apply(FileTrie files, Map<String, FileInfo> changes) {
+        for (Map.Entry<String, FileInfo> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                files = files.minus(change.getKey());
+            } else {
+                files = files.plus(change.getKey(), change.getValue());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the hash of the root tree of this commit, or null if it was
+     * made before trees existed.
+     */
+    public String getTree() {
+        if (tree == null && Util.fileExists(getCommitPath() + "/tree")) {
+            try {
+                tree = new String(Files.readAllBytes(Paths.get(getCommitPath(), "tree")), StandardCharsets.UTF_8).trim();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the files that differ between this commit and OTHER. Files
+     * only in OTHER map to null. With trees on both sides, directories that
+     * did not change are skipped by their hash.
+     */
+    public Map<String, FileInfo> changesSince(Commit other) {
+        if (getTree() != null && other.getTree() != null) {
+            try {
+                return Tree.diff(other.tree, tree);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        return getFiles().changesSince(other.getFiles());
     }
 
     /**
-     * Returns a list of ancestors of current commit that are splits, in order.
+     * Returns the given file as recorded in this commit, or null if this
+     * commit does not have it. Only the trees on the way to that file are
+     * read.
      */
-    private List<Commit> getSplits() {
-        List<Commit> splits = new ArrayList<Commit>();
-        Commit p = this;
-        while (p != null) {
-            if (p.numChildren > 0) {
-                splits.add(p);
+    public FileInfo getFile(String fileName) {
+        if (files == null && getTree() != null) {
+            try {
+                return Tree.get(tree, fileName);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            p = p.parent;
         }
-        return splits;
+        load();
+        return files.get(fileName);
     }
 
     /**
-     * Saves files to disk.
+     * Saves files to disk as trees. When the parent has trees, only the
+     * directories holding files changed since the parent are written.
      */
     private void save() {
-        Util.serialize(files, getCommitPath() + "/files.ser");
+        try {
+            Commit p = getParent();
+            if (p != null && p.getTree() != null) {
+                tree = Tree.update(p.tree, files.changesSince(p.getFiles()));
+            } else {
+                tree = Tree.write(files);
+            }
+            Journal.write(getCommitPath() + "/tree", tree.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
     }
 
     /**
-     * Returns a stack of ancestors up to EXCLUDE. In case EXCLUDE is
-     * not in the current path, stop condition will be null.
+     * Returns a stack of ancestors up to EXCLUDE, with the oldest on top. In
+     * case EXCLUDE is not in the current path, all ancestors are returned.
+     * Which commits belong is found with reachability bitmaps, so only the
+     * returned commits are read.
      */
     public Stack<Commit> getAncestorsStopAt(Commit exclude) {
-        Stack<Commit> ancestors = new Stack<Commit>();
-        Commit p = this;
-        while (p != null && p != exclude) {
-            ancestors.push(p);
-            p = p.parent;
+        CommitBitmap ids = exclude != null && CommitGraph.isAncestor(exclude.id, id)
+            ? CommitGraph.missing(id, exclude.id) : CommitGraph.reachable(id);
+        int[] ancestors = ids.toArray(); // a parent always has a lower id than its children
+        Stack<Commit> stack = new Stack<Commit>();
+        for (int i = ancestors.length - 1; i >= 0; i--) {
+            stack.push(CommitLog.get(ancestors[i]));
         }
-        return ancestors;
+        return stack;
     }
 
     /**
-     * Returns a collection of files that were snapshotted in this commit.
+     * Returns the files that were snapshotted in this commit. The trie is
+     * immutable, so it is handed out without copying.
      */
-    public Map<String, FileInfo> getFiles() {
+    public FileTrie getFiles() {
         load();
-        return new HashMap<String, FileInfo>(files);
+        return files;
     }
 
     /**
@@ -159,49 +287,111 @@ class Commit implements Serializable {
      * Returns true if the given file exists in current commit, false otherwise.
      */
     public boolean hasFile(String fileName) {
-        load();
-        return files.containsKey(fileName);
+        return getFile(fileName) != null;
     }
 
     /**
      * Returns true if the given file has changed since this commit, false otherwise.
+     * Files checked out as links to the snapshot are known to be unchanged
+     * without hashing them.
      */
     public boolean fileChanged(String fileName) {
-        if (!hasFile(fileName)) {
+        FileInfo file = getFile(fileName);
+        if (file == null) {
             return true;
         }
-        return !files.get(fileName).md5.equals(Util.getHexFromBytes(Util.computeFileMD5(fileName)));
+        String watched = Watcher.hash(fileName);
+        if (watched != null) {
+            return !file.md5.equals(watched);
+        }
+        if (file.isLinked()) {
+            return false;
+        }
+        return !StatCache.hasHash(fileName, file.md5);
     }
 
     /**
      * Returns true if current commit is in the history of given branch, false otherwise.
      */
     public boolean isInBranch(Branch branch) {
-        Commit p = branch.head;
-        while (p != null) {
-            if (p == this) {
-                return true;
-            }
-            p = p.parent;
-        }
-        return false;
+        return CommitGraph.isAncestor(id, branch.head.id);
     }
 
     /**
      * Restores a given file from version control system folder to working folder.
      */
     public void restoreFile(String fileName) {
-        load();
-        files.get(fileName).restore(false);
+        getFile(fileName).restore(false);
     }
 
     /**
-     * Restores all committed files to working folder.
+     * Makes the working folder match this commit, given that it matched
+     * commit CURRENT before. Only files that differ between the two are
+     * written or deleted.
      */
-    public void restoreAllFiles() {
-        load();
-        for (String fileName : files.keySet()) {
-            restoreFile(fileName);
+    public void restoreAllFiles(Commit current) {
+        restoreChanges(changesSince(current));
+    }
+
+    /**
+     * Makes the working folder match this commit, given that it matched
+     * commit CURRENT before, and also restores every file whose working
+     * copy is missing or was modified. Files the stat cache knows to be
+     * unchanged are not read.
+     */
+    public void resetAllFiles(Commit current) {
+        Map<String, FileInfo> changes = new HashMap<String, FileInfo>(changesSince(current));
+        for (Map.Entry<String, FileInfo> file : getFiles().entrySet()) {
+            if (!changes.containsKey(file.getKey())
+                    && (!Util.fileExists(file.getKey()) || fileChanged(file.getKey()))) {
+                changes.put(file.getKey(), file.getValue());
+            }
+        }
+        restoreChanges(changes);
+    }
+
+    /**
+     * Makes the working folder match this commit, given that it matched the
+     * files CURRENT before.
+     */
+    public void restoreAllFiles(FileTrie current) {
+        restoreChanges(getFiles().changesSince(current));
+    }
+
+    /**
+     * Writes the files in CHANGES and deletes those mapped to null, on
+     * core.ioDepth threads. Directories left empty are removed.
+     */
+    private static void restoreChanges(Map<String, FileInfo> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(changes.size(),
+            Math.max(1, Config.getInt(Config.IO_DEPTH, SnapshotPipeline.DEFAULT_IO_DEPTH))));
+        for (final Map.Entry<String, FileInfo> change : changes.entrySet()) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    if (change.getValue() != null) {
+                        change.getValue().restore(false);
+                    } else {
+                        new File(change.getKey()).delete();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Map.Entry<String, FileInfo> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                File dir = new File(change.getKey()).getParentFile();
+                while (dir != null && dir.delete()) { // only succeeds while empty
+                    dir = dir.getParentFile();
+                }
+            }
         }
     }
 
@@ -221,7 +411,7 @@ class Commit implements Serializable {
                         FileInfo splitFile = splitFiles.get(fileName);
                         if (!splitFile.md5.equals(fromFile.md5)) { // only if 'from' changed since split
                             if (splitFile.md5.equals(currentFile.md5)) {
-                                files.put(fileName, fromFile); // current not changed, copy over
+                                files = files.plus(fileName, fromFile); // current not changed, copy over
                             } else if (resolveConflict) { // conflict
                                 fromFile.restore(true);
                             }
@@ -231,7 +421,7 @@ class Commit implements Serializable {
                     }
                 }
             } else { // Current commit does not have the file, copy over
-                files.put(fileName, fromFile);
+                files = files.plus(fileName, fromFile);
             }
         }
         if (!resolveConflict) { // must be called from rebase
@@ -240,53 +430,23 @@ class Commit implements Serializable {
     }
 
     /**
-     * Prints information of current commit in the form as a log.
+     * Writes information of current commit in the form as a log to OUT.
      */
-    public void print() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-        System.out.println("====");
-        System.out.println("Commit " + String.valueOf(id) + ".");
-        System.out.println(dateFormat.format(timestamp.getTime())+" "+branchName);
-        System.out.println(message);
-        if (parent != null) {
-            System.out.println();
-        }
-
-        FileWriter writer=null;
-        PrintWriter out=null;
-
-        File f = new File("gitlet/myfile.csv");
-        if(!f.exists() && !f.isDirectory()) {
-//            try {
-//                writer=new FileWriter("gitlet/myfile.csv", true);
-//                out = new PrintWriter(writer);
-//                out.print("Date_Time");
-//                out.print(",");
-//                out.print("Branch_Name");
-//                out.print(",");
-//                out.print("message");
-//                out.print("\n");
-//                out.flush();
-//
-//            } catch (IOException e) {
-//                e.printStackTrace();
-//            }
+    public void print(PrintWriter out) {
+        out.println("====");
+        out.println("Commit " + String.valueOf(id) + ".");
+        out.println(getDate() + " " + branchName);
+        out.println(message);
+        if (parentID >= 0) {
+            out.println();
         }
+    }
 
-
-        try {
-            writer=new FileWriter("gitlet/myfile.csv", true);
-            out = new PrintWriter(writer);
-            out.print(dateFormat.format(timestamp.getTime()).toString());
-            out.print(",");
-            out.print(branchName);
-            out.print(",");
-            out.print(message);
-            out.print("\n");
-            out.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Returns the time this commit was made, as printed in the log.
+     */
+    public String getDate() {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(timestamp.getTimeInMillis()));
     }
 
     /**
@@ -302,6 +462,9 @@ class Commit implements Serializable {
     private void readObject(ObjectInputStream in) 
         throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        if (parent == null) { // written before parentID existed
+            parentID = -1;
+        }
     }
 
 }
@@ -0,0 +1,391 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of commit ids, compressed the way Roaring bitmaps are. Ids are
+ * split by their upper 16 bits into blocks of 65536, and each block that
+ * holds any id keeps its lower 16 bits in a container: a sorted array while
+ * it holds at most ARRAY_LIMIT ids, otherwise a bitset of 8 KB. Sets are
+ * combined block by block, so the cost follows the number of containers
+ * and not the number of ids.
+ *
+ * On disk, every container is written as whichever of an array, a bitset
+ * or a list of runs is smallest. The ancestors of a commit mostly have
+ * consecutive ids, so they usually take a few runs.
+ */
+
+class CommitBitmap {
+    private static final int ARRAY_LIMIT = 4096;     // Most ids an array container holds
+    private static final int WORDS = 1024;           // Longs in a bitset container
+    private static final byte ARRAY = 0;
+    private static final byte BITSET = 1;
+    private static final byte RUNS = 2;
+
+    private char[] keys = new char[0];               // Upper 16 bits of each block, increasing
+    private Container[] containers = new Container[0];
+    private int size;                                // Number of blocks in use
+
+    /**
+     * Lower 16 bits of the ids of one block, as a sorted array or a bitset.
+     */
+    private static class Container {
+        char[] values;                               // Sorted values, null for a bitset
+        long[] bits;                                 // Bitset, null for an array
+        int cardinality;
+
+        static Container array(char[] values, int cardinality) {
+            Container c = new Container();
+            c.values = values;
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        static Container bitset(long[] bits) {
+            Container c = new Container();
+            c.bits = bits;
+            for (long word : bits) {
+                c.cardinality += Long.bitCount(word);
+            }
+            return c;
+        }
+
+        boolean contains(char value) {
+            if (bits != null) {
+                return (bits[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        void add(char value) {
+            if (bits != null) {
+                long word = bits[value >>> 6];
+                bits[value >>> 6] = word | (1L << value);
+                if (bits[value >>> 6] != word) {
+                    cardinality++;
+                }
+                return;
+            }
+            int at = Arrays.binarySearch(values, 0, cardinality, value);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (cardinality == ARRAY_LIMIT) {
+                toBitset();
+                add(value);
+                return;
+            }
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, Math.max(4, 2 * cardinality)));
+            }
+            System.arraycopy(values, at, values, at + 1, cardinality - at);
+            values[at] = value;
+            cardinality++;
+        }
+
+        private void toBitset() {
+            bits = toBits();
+            values = null;
+        }
+
+        long[] toBits() {
+            if (bits != null) {
+                return bits.clone();
+            }
+            long[] words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return words;
+        }
+
+        Container copy() {
+            return bits != null ? bitset(bits.clone()) : array(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        /**
+         * Returns a container holding the values of both, shrunk back to an
+         * array if it is small enough.
+         */
+        static Container or(Container a, Container b) {
+            if (a.bits == null && b.bits == null && a.cardinality + b.cardinality <= ARRAY_LIMIT) {
+                char[] merged = new char[a.cardinality + b.cardinality];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < a.cardinality && j < b.cardinality) {
+                    char x = a.values[i];
+                    char y = b.values[j];
+                    merged[n++] = x <= y ? x : y;
+                    i += x <= y ? 1 : 0;
+                    j += y <= x ? 1 : 0;
+                }
+                while (i < a.cardinality) {
+                    merged[n++] = a.values[i++];
+                }
+                while (j < b.cardinality) {
+                    merged[n++] = b.values[j++];
+                }
+                return array(merged, n);
+            }
+            long[] words = a.toBits();
+            if (b.bits != null) {
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] |= b.bits[i];
+                }
+            } else {
+                for (int i = 0; i < b.cardinality; i++) {
+                    words[b.values[i] >>> 6] |= 1L << b.values[i];
+                }
+            }
+            return bitset(words);
+        }
+
+        /**
+         * Returns a container holding the values of A that are not in B, or
+         * null if there are none.
+         */
+        static Container andNot(Container a, Container b) {
+            if (a.bits == null) {
+                char[] kept = new char[a.cardinality];
+                int n = 0;
+                for (int i = 0; i < a.cardinality; i++) {
+                    if (!b.contains(a.values[i])) {
+                        kept[n++] = a.values[i];
+                    }
+                }
+                return n == 0 ? null : array(kept, n);
+            }
+            long[] words = a.bits.clone();
+            if (b.bits != null) {
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] &= ~b.bits[i];
+                }
+            } else {
+                for (int i = 0; i < b.cardinality; i++) {
+                    words[b.values[i] >>> 6] &= ~(1L << b.values[i]);
+                }
+            }
+            Container c = bitset(words);
+            return c.cardinality == 0 ? null : c.cardinality <= ARRAY_LIMIT ? array(c.values(), c.cardinality) : c;
+        }
+
+        /**
+         * Returns the values in increasing order.
+         */
+        char[] values() {
+            if (bits == null) {
+                return Arrays.copyOf(values, cardinality);
+            }
+            char[] result = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                for (long word = bits[i]; word != 0; word &= word - 1) {
+                    result[n++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                }
+            }
+            return result;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            char[] sorted = values();
+            int runs = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            if (4 * runs <= Math.min(2 * cardinality, 8 * WORDS)) {
+                out.writeByte(RUNS);
+                out.writeChar(runs);
+                for (int i = 0; i < sorted.length; i++) {
+                    int start = i;
+                    while (i + 1 < sorted.length && sorted[i + 1] == sorted[i] + 1) {
+                        i++;
+                    }
+                    out.writeChar(sorted[start]);
+                    out.writeChar(i - start); // length - 1, so a full block fits
+                }
+            } else if (cardinality <= ARRAY_LIMIT) {
+                out.writeByte(ARRAY);
+                out.writeChar(cardinality - 1);
+                for (char value : sorted) {
+                    out.writeChar(value);
+                }
+            } else {
+                out.writeByte(BITSET);
+                for (long word : toBits()) {
+                    out.writeLong(word);
+                }
+            }
+        }
+
+        static Container read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == BITSET) {
+                long[] words = new long[WORDS];
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] = in.readLong();
+                }
+                return bitset(words);
+            } else if (type == ARRAY) {
+                int cardinality = in.readChar() + 1;
+                char[] values = new char[cardinality];
+                for (int i = 0; i < cardinality; i++) {
+                    values[i] = in.readChar();
+                }
+                return array(values, cardinality);
+            } else if (type == RUNS) {
+                Container c = array(new char[0], 0);
+                int runs = in.readChar();
+                for (int r = 0; r < runs; r++) {
+                    int start = in.readChar();
+                    int end = start + in.readChar();
+                    for (int value = start; value <= end; value++) {
+                        c.add((char) value);
+                    }
+                }
+                return c;
+            }
+            throw new IOException("Unknown container type " + type);
+        }
+    }
+
+    /**
+     * Adds given commit id. Ids must not be negative.
+     */
+    public void add(int id) {
+        char key = (char) (id >>> 16);
+        int at = find(key);
+        if (at < 0) {
+            at = -at - 1;
+            insert(at, key, Container.array(new char[4], 0));
+        }
+        containers[at].add((char) id);
+    }
+
+    /**
+     * Returns true if given commit id is in the set.
+     */
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int at = find((char) (id >>> 16));
+        return at >= 0 && containers[at].contains((char) id);
+    }
+
+    /**
+     * Returns the number of ids in the set.
+     */
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality;
+        }
+        return total;
+    }
+
+    /**
+     * Returns a new set with the ids in this set or in OTHER.
+     */
+    public CommitBitmap or(CommitBitmap other) {
+        CommitBitmap result = new CommitBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.append(keys[i], containers[i++].copy());
+            } else if (i == size || other.keys[j] < keys[i]) {
+                result.append(other.keys[j], other.containers[j++].copy());
+            } else {
+                result.append(keys[i], Container.or(containers[i++], other.containers[j++]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new set with the ids in this set that are not in OTHER.
+     */
+    public CommitBitmap andNot(CommitBitmap other) {
+        CommitBitmap result = new CommitBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Container c = j < other.size && other.keys[j] == keys[i]
+                ? Container.andNot(containers[i], other.containers[j]) : containers[i].copy();
+            if (c != null) {
+                result.append(keys[i], c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy that can be changed without changing this set.
+     */
+    public CommitBitmap copy() {
+        CommitBitmap result = new CommitBitmap();
+        for (int i = 0; i < size; i++) {
+            result.append(keys[i], containers[i].copy());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids in increasing order.
+     */
+    public int[] toArray() {
+        int[] ids = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            for (char low : containers[i].values()) {
+                ids[n++] = (keys[i] << 16) | low;
+            }
+        }
+        return ids;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeChar(keys[i]);
+            containers[i].write(out);
+        }
+    }
+
+    public static CommitBitmap read(DataInputStream in) throws IOException {
+        CommitBitmap bitmap = new CommitBitmap();
+        int blocks = in.readInt();
+        for (int i = 0; i < blocks; i++) {
+            char key = in.readChar();
+            bitmap.append(key, Container.read(in));
+        }
+        return bitmap;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void append(char key, Container container) {
+        insert(size, key, container);
+    }
+
+    private void insert(int at, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(4, 2 * size));
+            containers = Arrays.copyOf(containers, keys.length);
+        }
+        System.arraycopy(keys, at, keys, at + 1, size - at);
+        System.arraycopy(containers, at, containers, at + 1, size - at);
+        keys[at] = key;
+        containers[at] = container;
+        size++;
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Questions about the shape of the history, answered from the parent ids
+ * and generation numbers in the commit index, without reading any commit
+ * from the log. A commit has generation 1 if it has no parent, otherwise
+ * one more than its parent, so every commit has a higher generation than
+ * all of its ancestors.
+ *
+ * Whether a commit is an ancestor of another is answered with reachability
+ * bitmaps: the set of ids of a commit and all of its ancestors. Every
+ * commit whose generation is a multiple of BITMAP_SPACING gets one the
+ * first time a question passes it, and keeps it in the bitmaps file, so a
+ * question walks at most that many parents before it reaches a bitmap. A
+ * bitmap is kept with the parent and generation of its commit, and is
+ * dropped if the index no longer agrees, as happens after gc.
+ */
+
+class CommitGraph {
+    private static final int FIRST = 1;              // Reached from the first commit
+    private static final int SECOND = 2;             // Reached from the second commit
+    private static final int BOTH = FIRST | SECOND;
+    private static final int BITMAP_SPACING = 64;   // Generations between commits that get a bitmap
+    private static final int BITMAP_MAGIC = 0x4743424D; // "GCBM"
+    private static final int BITMAP_VERSION = 1;
+
+    private static Map<Integer, Stored> bitmaps;     // Commit id to its bitmap, null until first use
+    private static boolean dirty;                    // True if bitmaps changed since they were read
+
+    /**
+     * Bitmap of one commit, with what the index said about the commit when
+     * it was made. Read bitmaps are only decoded when first used.
+     */
+    private static class Stored {
+        final int parent;
+        final int generation;
+        byte[] bytes;                                // Encoded bitmap, null once decoded
+        CommitBitmap bitmap;                         // Decoded bitmap, null until used
+
+        Stored(int parent, int generation) {
+            this.parent = parent;
+            this.generation = generation;
+        }
+    }
+
+    public static String getBitmapPath() {
+        return Gitlet.GITLET_DIR + "/bitmaps";
+    }
+
+    /**
+     * Returns the id of the nearest common ancestor of the two commits,
+     * which may be one of them, or -1 if they have none.
+     *
+     * Both histories are walked together, always taking the commit with the
+     * highest generation next. A commit is only taken after all commits
+     * above it on either side, so the first commit reached from both sides
+     * is the nearest. The walk stops there, having visited only the commits
+     * made since the two histories split.
+     */
+    public static int mergeBase(int id1, int id2) {
+        final Map<Integer, Integer> generations = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> reachedFrom = new HashMap<Integer, Integer>();
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int byGeneration = Integer.compare(generations.get(b), generations.get(a));
+                return byGeneration != 0 ? byGeneration : Integer.compare(b, a);
+            }
+        });
+        generations.put(id1, CommitLog.getGeneration(id1));
+        generations.put(id2, CommitLog.getGeneration(id2));
+        reachedFrom.put(id1, FIRST);
+        reachedFrom.put(id2, id1 == id2 ? BOTH : SECOND);
+        queue.add(id1);
+        if (id1 != id2) {
+            queue.add(id2);
+        }
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            int sides = reachedFrom.get(id);
+            if (sides == BOTH) {
+                return id;
+            }
+            int parent = CommitLog.getParentID(id);
+            if (parent < 0) {
+                continue;
+            }
+            Integer before = reachedFrom.get(parent);
+            reachedFrom.put(parent, before == null ? sides : before | sides);
+            if (before == null) {
+                generations.put(parent, CommitLog.getGeneration(parent));
+                queue.add(parent);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the commit with id ANCESTOR is the commit with id ID
+     * or one of its ancestors. Parents are followed until one is old enough
+     * to be ruled out or has a bitmap.
+     */
+    public static synchronized boolean isAncestor(int ancestor, int id) {
+        int target = CommitLog.getGeneration(ancestor);
+        if (target == 0) {
+            return false;
+        }
+        for (int p = id; p >= 0; p = CommitLog.getParentID(p)) {
+            int generation = CommitLog.getGeneration(p);
+            if (p == ancestor) {
+                return true;
+            } else if (generation <= target) {
+                return false; // no ancestor of P has a generation as high as its own
+            } else if (generation % BITMAP_SPACING == 0) {
+                return reachable(p).contains(ancestor);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the ids of the commit with given id and all of its ancestors.
+     * Parents are followed up to the nearest commit with a bitmap, and the
+     * commits passed on the way that should have one get it.
+     */
+    public static synchronized CommitBitmap reachable(int id) {
+        List<Integer> path = new ArrayList<Integer>(); // Commits without a bitmap, newest first
+        CommitBitmap base = null;
+        for (int p = id; p >= 0 && CommitLog.getGeneration(p) > 0; p = CommitLog.getParentID(p)) {
+            base = stored(p);
+            if (base != null) {
+                break;
+            }
+            path.add(p);
+        }
+        CommitBitmap result = base == null ? new CommitBitmap() : base.copy();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            int p = path.get(i);
+            result.add(p);
+            if (CommitLog.getGeneration(p) % BITMAP_SPACING == 0) {
+                Stored stored = new Stored(CommitLog.getParentID(p), CommitLog.getGeneration(p));
+                stored.bitmap = result.copy();
+                bitmaps.put(p, stored);
+                dirty = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of the commits in the history of ID1 that are not in
+     * the history of ID2.
+     */
+    public static synchronized CommitBitmap missing(int id1, int id2) {
+        return reachable(id1).andNot(reachable(id2));
+    }
+
+    /**
+     * Returns the bitmap kept for given commit, or null if it has none or
+     * the index no longer agrees with it.
+     */
+    private static CommitBitmap stored(int id) {
+        load();
+        Stored stored = bitmaps.get(id);
+        if (stored == null) {
+            return null;
+        }
+        if (stored.parent != CommitLog.getParentID(id) || stored.generation != CommitLog.getGeneration(id)) {
+            bitmaps.remove(id);
+            dirty = true;
+            return null;
+        }
+        if (stored.bitmap == null) {
+            try {
+                stored.bitmap = CommitBitmap.read(new DataInputStream(new ByteArrayInputStream(stored.bytes)));
+                stored.bytes = null;
+            } catch (IOException e) {
+                bitmaps.remove(id); // made again on the way back
+                dirty = true;
+                return null;
+            }
+        }
+        return stored.bitmap;
+    }
+
+    /**
+     * Drops the bitmaps of commits that are gone or changed, after the log
+     * was rewritten.
+     */
+    public static synchronized void prune() {
+        load();
+        Iterator<Map.Entry<Integer, Stored>> entries = bitmaps.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Integer, Stored> entry = entries.next();
+            int id = entry.getKey();
+            Stored stored = entry.getValue();
+            if (stored.parent != CommitLog.getParentID(id) || stored.generation != CommitLog.getGeneration(id)) {
+                entries.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    private static void load() {
+        if (bitmaps != null) {
+            return;
+        }
+        bitmaps = new HashMap<Integer, Stored>();
+        dirty = false;
+        if (!Util.fileExists(getBitmapPath())) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(getBitmapPath()))) {
+            if (in.readInt() != BITMAP_MAGIC || in.readInt() != BITMAP_VERSION) {
+                return; // made again as questions are asked
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                Stored stored = new Stored(in.readInt(), in.readInt());
+                stored.bytes = new byte[in.readInt()];
+                in.readFully(stored.bytes);
+                bitmaps.put(id, stored);
+            }
+        } catch (IOException e) {
+            bitmaps.clear(); // a cache, so start over rather than fail
+        }
+    }
+
+    /**
+     * Writes the bitmaps to disk if they changed.
+     */
+    public static synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(BITMAP_MAGIC);
+            out.writeInt(BITMAP_VERSION);
+            out.writeInt(bitmaps.size());
+            for (Map.Entry<Integer, Stored> entry : bitmaps.entrySet()) {
+                Stored stored = entry.getValue();
+                byte[] encoded = stored.bytes;
+                if (encoded == null) {
+                    ByteArrayOutputStream bitmap = new ByteArrayOutputStream();
+                    DataOutputStream bitmapOut = new DataOutputStream(bitmap);
+                    stored.bitmap.write(bitmapOut);
+                    bitmapOut.flush();
+                    encoded = bitmap.toByteArray();
+                }
+                out.writeInt(entry.getKey());
+                out.writeInt(stored.parent);
+                out.writeInt(stored.generation);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            out.flush();
+            Journal.write(getBitmapPath(), bytes.toByteArray());
+            dirty = false;
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
+    }
+
+    /**
+     * Forgets the bitmaps in memory, so they are read from disk on next use.
+     */
+    public static synchronized void reload() {
+        bitmaps = null;
+        dirty = false;
+    }
+}
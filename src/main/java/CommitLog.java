@@ -0,0 +1,462 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent history of the version control system. Commits are appended
+ * to a log file as they are made, so a commit writes one small record no
+ * matter how long the history is. Each record is its length followed by:
+ *
+ *   COMMIT  type, id, parent id (-1 for none), time in millis, branch, message
+ *   SPLIT   type, id of a commit a branch was created at
+ *
+ * Strings are a length followed by UTF-8 bytes, with length -1 for null.
+ * Branch heads and the current branch live in a separate small refs file.
+ *
+ * Commits are read on demand. A memory mapped index holds, for every commit
+ * id, the offset of its record in the log, the number of branches created
+ * at it, its parent id and its generation number, so reading the head of a
+ * branch costs the same for any history length, and CommitGraph walks the
+ * history without reading the log. The index records the log length it covers and is rebuilt from the
+ * log whenever the two disagree. Every commit is materialized at most once,
+ * so commits can be compared by identity.
+ */
+
+class CommitLog {
+    private static final byte COMMIT = 'C';
+    private static final byte SPLIT = 'S';
+    private static final int INDEX_MAGIC = 0x47434958; // "GCIX"
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER = 16;
+    private static final int ENTRY_SIZE = 20;       // offset, splits, parent id, generation
+
+    private static Map<Integer, Commit> cache = new HashMap<Integer, Commit>(); // Commits read so far
+    private static MappedByteBuffer index;           // Mapped index, null until first use
+
+    /**
+     * Branch heads and other pointers into the history, as stored in the refs file.
+     */
+    static class Refs {
+        public String currentBranch;                 // Name of the current branch
+        public int nextCommitID;                     // ID given to the next commit
+        public long logLength = -1;                  // Length of the log when refs were written, -1 if unknown
+        public Map<String, Integer> heads = new LinkedHashMap<String, Integer>(); // Branch name to head id
+    }
+
+    public static String getLogPath() {
+        return Gitlet.GITLET_DIR + "/commits.log";
+    }
+
+    public static String getIndexPath() {
+        return Gitlet.GITLET_DIR + "/commits.idx";
+    }
+
+    public static String getRefsPath() {
+        return Gitlet.GITLET_DIR + "/refs";
+    }
+
+    /**
+     * Forgets commits read so far and the mapped index, after the log was
+     * changed behind their back.
+     */
+    public static synchronized void reset() {
+        cache = new HashMap<Integer, Commit>();
+        index = null;
+    }
+
+    /**
+     * Returns true if a history has been written in this folder.
+     */
+    public static boolean exists() {
+        return Util.fileExists(getRefsPath());
+    }
+
+    /**
+     * Appends a new commit to the log.
+     */
+    public static void append(Commit commit) {
+        try {
+            openIndex();
+            long offset = new File(getLogPath()).length();
+            try (DataOutputStream out = openForAppend()) {
+                writeCommit(out, commit);
+            }
+            cache.put(commit.id, commit);
+            updateIndex(commit.id, offset, commit.numChildren, commit.getParentID());
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
+    }
+
+    /**
+     * Records that a branch was created at given commit.
+     */
+    public static void appendSplit(Commit commit) {
+        try {
+            openIndex();
+            try (DataOutputStream out = openForAppend()) {
+                writeSplit(out, commit);
+            }
+            updateIndex(commit.id, -2, commit.numChildren, commit.getParentID());
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
+    }
+
+    /**
+     * Returns the commit with given id, or null if there is none.
+     */
+    public static synchronized Commit get(int id) {
+        Commit commit = cache.get(id);
+        if (commit != null || id < 0) {
+            return commit;
+        }
+        try {
+            openIndex();
+            if (id >= (index.capacity() - INDEX_HEADER) / ENTRY_SIZE) {
+                return null;
+            }
+            long offset = index.getLong(INDEX_HEADER + id * ENTRY_SIZE);
+            if (offset < 0) {
+                return null;
+            }
+            try (RandomAccessFile log = new RandomAccessFile(getLogPath(), "r")) {
+                log.seek(offset);
+                byte[] record = new byte[log.readInt()];
+                log.readFully(record);
+                commit = parseCommit(record);
+            }
+            commit.numChildren = index.getInt(INDEX_HEADER + id * ENTRY_SIZE + 8);
+            cache.put(id, commit);
+            return commit;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the parent id of the commit with given id, -1 if it has none,
+     * without reading the commit.
+     */
+    public static synchronized int getParentID(int id) {
+        return readEntry(id, 12, -1);
+    }
+
+    /**
+     * Returns the generation number of the commit with given id: 1 if it
+     * has no parent, otherwise one more than its parent. Returns 0 if there
+     * is no such commit.
+     */
+    public static synchronized int getGeneration(int id) {
+        return readEntry(id, 16, 0);
+    }
+
+    private static int readEntry(int id, int field, int missing) {
+        try {
+            openIndex();
+            if (id < 0 || id >= (index.capacity() - INDEX_HEADER) / ENTRY_SIZE) {
+                return missing;
+            }
+            return index.getInt(INDEX_HEADER + id * ENTRY_SIZE + field);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return missing;
+        }
+    }
+
+    /**
+     * Returns every commit in the history, in increasing order of id.
+     */
+    public static synchronized List<Commit> getAll() {
+        List<Commit> commits = new ArrayList<Commit>();
+        try {
+            openIndex();
+            int entries = (index.capacity() - INDEX_HEADER) / ENTRY_SIZE;
+            for (int id = 0; id < entries; id++) {
+                Commit commit = get(id);
+                if (commit != null) {
+                    commits.add(commit);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return commits;
+    }
+
+    /**
+     * Replaces the log with one holding only given commits, in order.
+     */
+    public static void rewrite(List<Commit> commits) {
+        String tmp = getLogPath() + ".tmp";
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            for (Commit commit : commits) {
+                writeCommit(out, commit);
+                for (int i = 0; i < commit.numChildren; i++) {
+                    writeSplit(out, commit);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Journal.force(Paths.get(tmp));
+            Files.move(Paths.get(tmp), Paths.get(getLogPath()), StandardCopyOption.REPLACE_EXISTING);
+            cache = new HashMap<Integer, Commit>();
+            for (Commit commit : commits) {
+                cache.put(commit.id, commit);
+            }
+            rebuildIndex();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps the index into memory, rebuilding it first if it does not cover
+     * the whole log.
+     */
+    private static void openIndex() throws IOException {
+        if (index != null) {
+            return;
+        }
+        File idx = new File(getIndexPath());
+        if (!idx.exists() || idx.length() < INDEX_HEADER || readCoveredLength() != new File(getLogPath()).length()) {
+            rebuildIndex();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(idx, "r")) {
+            index = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+    }
+
+    private static long readCoveredLength() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(getIndexPath()))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return -1;
+            }
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Writes the index from scratch by scanning the whole log.
+     */
+    private static void rebuildIndex() throws IOException {
+        index = null;
+        List<long[]> entries = new ArrayList<long[]>(); // offset, number of splits, parent and generation, by id
+        long offset = 0;
+        if (Util.fileExists(getLogPath())) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(getLogPath()), 1 << 16))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    int id = ((record[1] & 0xFF) << 24) | ((record[2] & 0xFF) << 16)
+                        | ((record[3] & 0xFF) << 8) | (record[4] & 0xFF);
+                    while (entries.size() <= id) {
+                        entries.add(new long[] {-1, 0, -1, 0});
+                    }
+                    if (record[0] == COMMIT) {
+                        int parent = ((record[5] & 0xFF) << 24) | ((record[6] & 0xFF) << 16)
+                            | ((record[7] & 0xFF) << 8) | (record[8] & 0xFF);
+                        entries.get(id)[0] = offset;
+                        entries.get(id)[2] = parent;
+                        entries.get(id)[3] = parent >= 0 && parent < id ? entries.get(parent)[3] + 1 : 1;
+                    } else {
+                        entries.get(id)[1]++;
+                    }
+                    offset += 4 + length;
+                }
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER + entries.size() * ENTRY_SIZE);
+        buffer.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(offset);
+        for (long[] entry : entries) {
+            buffer.putLong(entry[0]).putInt((int) entry[1]).putInt((int) entry[2]).putInt((int) entry[3]);
+        }
+        String tmp = getIndexPath() + ".tmp";
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buffer.array());
+        }
+        Files.move(Paths.get(tmp), Paths.get(getIndexPath()), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Updates the index entry of given commit after a record was appended to
+     * the log. An OFFSET of -2 keeps the current offset, parent and
+     * generation.
+     */
+    private static void updateIndex(int id, long offset, int splits, int parent) throws IOException {
+        index = null;
+        try (RandomAccessFile idx = new RandomAccessFile(getIndexPath(), "rw")) {
+            long entries = (idx.length() - INDEX_HEADER) / ENTRY_SIZE;
+            int generation = 1;
+            if (parent >= 0 && parent < entries) {
+                idx.seek(INDEX_HEADER + (long) parent * ENTRY_SIZE + 16);
+                generation = idx.readInt() + 1;
+            }
+            idx.seek(idx.length());
+            for (long i = entries; i < id; i++) {
+                idx.writeLong(-1);
+                idx.writeInt(0);
+                idx.writeInt(-1);
+                idx.writeInt(0);
+            }
+            idx.seek(INDEX_HEADER + (long) id * ENTRY_SIZE);
+            if (offset != -2) {
+                idx.writeLong(offset);
+                idx.writeInt(splits);
+                idx.writeInt(parent);
+                idx.writeInt(generation);
+            } else {
+                idx.seek(idx.getFilePointer() + 8);
+                idx.writeInt(splits);
+                if (id >= entries) { // no record of the commit yet
+                    idx.writeInt(-1);
+                    idx.writeInt(0);
+                }
+            }
+            idx.seek(8);
+            idx.writeLong(new File(getLogPath()).length());
+        }
+    }
+
+    /**
+     * Overwrites the refs file with given branch heads, together with the
+     * current length of the log so records appended by an unfinished
+     * command can be told apart after a crash.
+     */
+    public static void writeRefs(Refs refs) {
+        StringBuilder out = new StringBuilder();
+        out.append("current ").append(refs.currentBranch).append('\n');
+        out.append("next ").append(refs.nextCommitID).append('\n');
+        out.append("log ").append(new File(getLogPath()).length()).append('\n');
+        for (Map.Entry<String, Integer> head : refs.heads.entrySet()) {
+            out.append("branch ").append(head.getValue()).append(' ').append(head.getKey()).append('\n');
+        }
+        try {
+            Journal.write(getRefsPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
+    }
+
+    /**
+     * Reads the refs file.
+     */
+    public static Refs readRefs() throws IOException {
+        Refs refs = new Refs();
+        byte[] pending = Journal.read(getRefsPath());
+        try (BufferedReader in = pending != null
+                ? new BufferedReader(new StringReader(new String(pending, StandardCharsets.UTF_8)))
+                : Files.newBufferedReader(Paths.get(getRefsPath()), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("current ")) {
+                    refs.currentBranch = line.substring("current ".length());
+                } else if (line.startsWith("next ")) {
+                    refs.nextCommitID = Integer.parseInt(line.substring("next ".length()));
+                } else if (line.startsWith("log ")) {
+                    refs.logLength = Long.parseLong(line.substring("log ".length()));
+                } else if (line.startsWith("branch ")) {
+                    String[] parts = line.split(" ", 3);
+                    refs.heads.put(parts[2], Integer.parseInt(parts[1]));
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Returns the commit described by a COMMIT record.
+     */
+    private static Commit parseCommit(byte[] record) throws IOException {
+        DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+        if (r.readByte() != COMMIT) {
+            throw new IOException("Corrupted commit log");
+        }
+        int id = r.readInt();
+        int parentId = r.readInt();
+        long time = r.readLong();
+        String branchName = readString(r);
+        return new Commit(id, readString(r), parentId, time, branchName);
+    }
+
+    private static DataOutputStream openForAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getLogPath(), true)));
+    }
+
+    private static void writeCommit(DataOutputStream out, Commit commit) throws IOException {
+        byte[] branch = toBytes(commit.branchName);
+        byte[] message = toBytes(commit.message);
+        out.writeInt(1 + 4 + 4 + 8 + 4 + length(branch) + 4 + length(message));
+        out.writeByte(COMMIT);
+        out.writeInt(commit.id);
+        out.writeInt(commit.getParentID());
+        out.writeLong(commit.timestamp.getTimeInMillis());
+        writeBytes(out, branch);
+        writeBytes(out, message);
+    }
+
+    private static void writeSplit(DataOutputStream out, Commit commit) throws IOException {
+        out.writeInt(1 + 4);
+        out.writeByte(SPLIT);
+        out.writeInt(commit.id);
+    }
+
+    private static byte[] toBytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] b) {
+        return b == null ? 0 : b.length;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b == null ? -1 : b.length);
+        if (b != null) {
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
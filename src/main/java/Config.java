@@ -0,0 +1,116 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Repository settings, kept as a properties file in version control system
+ * folder. Missing keys fall back to the defaults given by callers.
+ */
+
+class Config {
+    public static final String COMPRESSION = "core.compression";            // none or deflate
+    public static final String COMPRESSION_LEVEL = "core.compressionLevel"; // 0 to 9
+    public static final String IO = "core.io";                              // stream or channel
+    public static final String HASH = "core.hash";                          // md5 or sha256, fixed once files are stored
+    public static final String CHUNK_THRESHOLD = "core.chunkThreshold";     // Size in bytes from which files are chunked
+    public static final String IO_DEPTH = "core.ioDepth";                   // Files read or written at once when storing many
+    public static final String CHECKOUT_MODE = "checkout.mode";             // copy, hardlink or symlink
+    public static final String WATCH = "daemon.watch";                      // true to watch the working folder while serving
+
+    private static Properties properties;            // Settings, loaded on first use
+
+    /**
+     * Returns the value for given key, or DEFAULTVALUE if it is not set.
+     */
+    public static String get(String key, String defaultValue) {
+        load();
+        return properties.getProperty(key, defaultValue);
+    }
+
+    /**
+     * Returns the integer value for given key, or DEFAULTVALUE if it is not set.
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Returns true if VALUE is a valid setting for KEY. Keys this class
+     * does not know take any value.
+     */
+    public static boolean isValid(String key, String value) {
+        if (key.equals(HASH)) {
+            return HashAlgorithm.forName(value) != null;
+        } else if (key.equals(COMPRESSION)) {
+            return Codec.forName(value) != null;
+        } else if (key.equals(COMPRESSION_LEVEL)) {
+            return isInt(value, 0, 9);
+        } else if (key.equals(CHUNK_THRESHOLD) || key.equals(IO_DEPTH)) {
+            return isInt(value, 1, Integer.MAX_VALUE);
+        } else if (key.equals(IO)) {
+            return value.equals(FileIO.STREAM) || value.equals(FileIO.CHANNEL);
+        } else if (key.equals(CHECKOUT_MODE)) {
+            return value.equals(FileInfo.COPY) || value.equals(FileInfo.HARDLINK) || value.equals(FileInfo.SYMLINK);
+        } else if (key.equals(WATCH)) {
+            return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false");
+        }
+        return true;
+    }
+
+    private static boolean isInt(String value, int min, int max) {
+        try {
+            int n = Integer.parseInt(value.trim());
+            return n >= min && n <= max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets given key to VALUE and saves the settings to disk.
+     */
+    public static void set(String key, String value) {
+        load();
+        properties.setProperty(key, value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            properties.store(out, null);
+            Journal.write(getConfigPath(), out.toByteArray());
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
+    }
+
+    /**
+     * Loads settings from disk if they are not in memory yet.
+     */
+    private static synchronized void load() {
+        if (properties != null) {
+            return;
+        }
+        Properties read = new Properties();
+        if (new File(getConfigPath()).exists()) {
+            try (InputStream in = new FileInputStream(getConfigPath())) {
+                read.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        properties = read;
+    }
+
+    /**
+     * Forgets the settings in memory, so they are read from disk on next use.
+     */
+    public static synchronized void reload() {
+        properties = null;
+    }
+
+    private static String getConfigPath() {
+        return Gitlet.GITLET_DIR + "/config";
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Long-running server that keeps the repository loaded between commands.
+ * It listens on a local TCP port, which it writes together with a random
+ * token to the daemon file in version control system folder. The command
+ * line forwards its arguments there when that file exists, and runs the
+ * command itself when no daemon answers.
+ *
+ * With daemon.watch set to true, the daemon also watches the working
+ * folder, so status only looks at the files that changed.
+ *
+ * Each client gets its own thread. Commands that only read, such as status,
+ * log and find, run together under a shared lock, all others one at a
+ * time. Before a reading command starts, the state is brought up to date
+ * under the exclusive lock, so the shared caches are never dropped while
+ * another command uses them. Output and the answer to the confirmation
+ * prompt travel over the connection as frames: a type byte followed by the
+ * frame data.
+ */
+
+class Daemon {
+    private static final byte OUT = 'O';             // Server to client: bytes for stdout
+    private static final byte ERR = 'E';             // Server to client: bytes for stderr
+    private static final byte INPUT = 'I';           // Server to client: a line of stdin is needed
+    private static final byte EXIT = 'X';            // Server to client: the command finished
+    private static final byte LINE = 'L';            // Client to server: a line of stdin
+    private static final byte END = 'D';             // Client to server: stdin is closed
+    private static final String STOP = "stop";
+
+    private static final ReentrantReadWriteLock LOCK = new ReentrantReadWriteLock();
+    private static final ThreadLocal<Session> SESSION = new ThreadLocal<Session>();
+    private static ServerSocket server;              // Socket clients connect to, null when not serving
+
+    public static String getPath() {
+        return Gitlet.GITLET_DIR + "/daemon";
+    }
+
+    /**
+     * Serves commands until asked to stop.
+     */
+    public static void serve() {
+        if (Util.fileExists(getPath()) && forward(new String[] {"status"}, new PrintStream(new OutputStream() {
+                public void write(int b) {}
+            }))) {
+            System.out.println(Messages.DAEMON_RUNNING);
+            return;
+        }
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        String token = Util.getHexFromBytes(random);
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Journal.recover();
+            Gitlet.keepLoaded();
+            if (Boolean.parseBoolean(Config.get(Config.WATCH, "false"))) {
+                Watcher.start();
+            }
+            Journal.writeAtomically(getPath(), (server.getLocalPort() + " " + token).getBytes(StandardCharsets.UTF_8));
+            redirect();
+            System.out.println(Messages.DAEMON_STARTED + server.getLocalPort());
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    break; // closed by a stop request
+                }
+                final String expected = token;
+                clients.execute(new Runnable() {
+                    public void run() {
+                        handle(socket, expected);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Watcher.stop();
+            new File(getPath()).delete();
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Runs a command in the daemon of this repository, if one is running,
+     * printing its output to OUT. Returns false if no daemon answered.
+     */
+    public static boolean forward(String[] args, PrintStream out) {
+        String[] address;
+        try {
+            address = new String(Files.readAllBytes(Paths.get(getPath())), StandardCharsets.UTF_8).trim().split(" ");
+        } catch (IOException e) {
+            return false;
+        }
+        if (address.length != 2) {
+            return false;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0]));
+        } catch (IOException | RuntimeException e) {
+            return false; // not running, or the daemon file is damaged
+        }
+        try (Socket s = socket) {
+            DataOutputStream to = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream from = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            to.writeUTF(address[1]);
+            to.writeInt(args.length);
+            for (String arg : args) {
+                to.writeUTF(arg);
+            }
+            to.flush();
+            BufferedReader stdin = null;
+            while (true) {
+                byte type = from.readByte();
+                if (type == EXIT) {
+                    return true;
+                } else if (type == INPUT) {
+                    if (stdin == null) {
+                        stdin = new BufferedReader(new InputStreamReader(System.in));
+                    }
+                    String line = stdin.readLine();
+                    if (line == null) {
+                        to.writeByte(END);
+                    } else {
+                        to.writeByte(LINE);
+                        to.writeUTF(line);
+                    }
+                    to.flush();
+                } else {
+                    byte[] data = new byte[from.readInt()];
+                    from.readFully(data);
+                    (type == ERR ? System.err : out).write(data);
+                    (type == ERR ? System.err : out).flush();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(Messages.DAEMON_LOST); // the command may have run, so it is not repeated here
+            return true;
+        }
+    }
+
+    /**
+     * Runs the command sent over given connection.
+     */
+    private static void handle(Socket socket, String token) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (!in.readUTF().equals(token)) {
+                return;
+            }
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            Session session = new Session(in, out);
+            SESSION.set(session);
+            try {
+                if (args.length == 2 && args[0].equals("daemon") && args[1].equals(STOP)) {
+                    LOCK.writeLock().lock(); // let running commands finish
+                    try {
+                        System.out.println(Messages.DAEMON_STOPPED);
+                        server.close();
+                    } finally {
+                        LOCK.writeLock().unlock();
+                    }
+                } else {
+                    run(args);
+                }
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                SESSION.remove();
+            }
+            session.send(EXIT, new byte[0], 0, 0);
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    /**
+     * Runs a command under the lock it needs.
+     */
+    private static void run(String[] args) {
+        boolean readOnly = isReadOnly(args);
+        Lock lock = LOCK.writeLock();
+        lock.lock();
+        try {
+            Watcher.sync();
+            if (readOnly) {
+                Gitlet.refresh();
+                LOCK.readLock().lock(); // taken before the exclusive lock is let go, so nothing runs in between
+                lock.unlock();
+                lock = LOCK.readLock();
+                Gitlet.query(args);
+            } else {
+                Gitlet.execute(args);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the command only reads the repository and prints, so
+     * it can run alongside other reading commands.
+     */
+    private static boolean isReadOnly(String[] args) {
+        String command = args[0];
+        return command.equals("status") || command.equals("log") || command.equals("global-log")
+            || (command.equals("find") || command.equals("config")) && args.length == 2;
+    }
+
+    /**
+     * Sends everything written to the standard streams by a client thread
+     * to that client, and makes the standard input ask it for lines.
+     */
+    private static void redirect() {
+        System.setOut(new PrintStream(new Redirect(System.out, OUT), true));
+        System.setErr(new PrintStream(new Redirect(System.err, ERR), true));
+        final InputStream stdin = System.in;
+        System.setIn(new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                Session session = SESSION.get();
+                return session == null ? stdin.read(b, off, len) : session.read(b, off, len);
+            }
+        });
+    }
+
+    /**
+     * Stream that writes to the client of the current thread, or to the
+     * original stream on threads without a client.
+     */
+    private static class Redirect extends OutputStream {
+        private final OutputStream original;
+        private final byte type;
+
+        Redirect(OutputStream original, byte type) {
+            this.original = original;
+            this.type = type;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            Session session = SESSION.get();
+            if (session == null) {
+                original.write(b, off, len);
+            } else {
+                session.send(type, b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            if (SESSION.get() == null) {
+                original.flush();
+            }
+        }
+    }
+
+    /**
+     * Connection to one client.
+     */
+    private static class Session {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private byte[] line = new byte[0];           // Rest of the last line received from the client
+        private int position;
+        private boolean closed;                      // True once the client has no more input
+
+        Session(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        synchronized void send(byte type, byte[] b, int off, int len) throws IOException {
+            out.writeByte(type);
+            if (type == OUT || type == ERR) {
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+            out.flush();
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            if (position == line.length) {
+                if (closed) {
+                    return -1;
+                }
+                send(INPUT, null, 0, 0);
+                if (in.readByte() == END) {
+                    closed = true;
+                    return -1;
+                }
+                line = (in.readUTF() + "\n").getBytes(StandardCharsets.UTF_8);
+                position = 0;
+            }
+            int n = Math.min(len, line.length - position);
+            System.arraycopy(line, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
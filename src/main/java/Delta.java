@@ -0,0 +1,201 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary delta encoding used by pack files. A delta describes the target
+ * content as a sequence of instructions that either copy a range out of the
+ * base content or insert literal bytes.
+ *
+ * Layout: varint base length, varint target length, followed by instructions
+ * COPY (varint offset, varint length) and INSERT (varint length, bytes).
+ */
+
+class Delta {
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+    private static final int BLOCK = 16;             // Size of the blocks of base that are indexed
+    private static final int MULTIPLIER = 31;
+    private static final int MAX_PROBES = 32;        // Bounds the work spent on highly repetitive content
+
+    /**
+     * Returns a delta that turns BASE into TARGET.
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int[] index = buildIndex(base);
+        int mask = index.length / 2 - 1;
+        int pow = 1;
+        for (int i = 0; i < BLOCK - 1; i++) {
+            pow *= MULTIPLIER;
+        }
+
+        int literalStart = 0;
+        int pos = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (pos + BLOCK <= target.length) {
+            int matchLength = 0;
+            int matchOffset = 0;
+            int probes = 0;
+            for (int slot = h & mask; index[2 * slot] != 0 && probes++ < MAX_PROBES; slot = (slot + 1) & mask) {
+                if (index[2 * slot] != (h | 1)) {
+                    continue;
+                }
+                int candidate = index[2 * slot + 1];
+                int length = 0;
+                while (candidate + length < base.length && pos + length < target.length
+                        && base[candidate + length] == target[pos + length]) {
+                    length++;
+                }
+                if (length > matchLength) {
+                    matchLength = length;
+                    matchOffset = candidate;
+                }
+            }
+            if (matchLength >= BLOCK) {
+                while (pos > literalStart && matchOffset > 0 && base[matchOffset - 1] == target[pos - 1]) {
+                    pos--;
+                    matchOffset--;
+                    matchLength++;
+                }
+                writeInsert(out, target, literalStart, pos);
+                out.write(COPY);
+                writeVarint(out, matchOffset);
+                writeVarint(out, matchLength);
+                pos += matchLength;
+                literalStart = pos;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+            } else {
+                if (pos + BLOCK < target.length) {
+                    h = (h - target[pos] * pow) * MULTIPLIER + target[pos + BLOCK];
+                }
+                pos++;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reconstructs the target content by applying DELTA on top of BASE.
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = new int[] {0};
+        int baseLength = (int) readVarint(delta, pos);
+        if (baseLength != base.length) {
+            throw new IllegalArgumentException("Delta does not match its base");
+        }
+        byte[] target = new byte[(int) readVarint(delta, pos)];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = (int) readVarint(delta, pos);
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, written, length);
+                pos[0] += length;
+                written += length;
+            } else {
+                throw new IllegalArgumentException("Corrupted delta");
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Builds an open addressing table from the hash of every aligned block in
+     * BASE to its offset. Hashes are stored with the lowest bit set so that
+     * zero marks an empty slot.
+     */
+    private static int[] buildIndex(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int size = 16;
+        while (size < blocks * 2) {
+            size <<= 1;
+        }
+        int[] index = new int[2 * size];
+        int mask = size - 1;
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            int h = hash(base, offset);
+            int slot = h & mask;
+            int probes = 0;
+            while (index[2 * slot] != 0 && probes++ < MAX_PROBES) {
+                slot = (slot + 1) & mask;
+            }
+            if (index[2 * slot] == 0) {
+                index[2 * slot] = h | 1;
+                index[2 * slot + 1] = offset;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the polynomial hash of the block starting at OFFSET.
+     */
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            h = h * MULTIPLIER + data[i];
+        }
+        return h;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(data, from, to - from);
+        }
+    }
+
+    /**
+     * Writes an unsigned value using 7 bits per byte, lowest group first.
+     */
+    public static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads a value written by writeVarint, advancing POS past it.
+     */
+    public static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Reads a value written by writeVarint at the position of DATA,
+     * advancing the position past it.
+     */
+    public static long readVarint(ByteBuffer data) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
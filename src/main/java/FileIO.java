@@ -0,0 +1,153 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Low level file copying and hashing. Depending on the core.io setting this
+ * either moves data through heap buffers with streams, or lets the kernel
+ * copy between file channels and hashes through a direct buffer. The channel
+ * path falls back to streams when the file system does not support channel
+ * transfers, but real I/O errors are passed on.
+ */
+
+class FileIO {
+    public static final String STREAM = "stream";
+    public static final String CHANNEL = "channel";
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<byte[]> HEAP_BUFFER = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[1 << 16];
+        }
+    };
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Returns true if channels are used for I/O, false if streams are.
+     */
+    public static boolean useChannels() {
+        return CHANNEL.equals(Config.get(Config.IO, CHANNEL));
+    }
+
+    /**
+     * Feeds the whole content of given file into MD.
+     */
+    public static void digest(String fileName, MessageDigest md) throws IOException {
+        if (useChannels()) {
+            try (FileChannel in = new FileInputStream(fileName).getChannel()) {
+                ByteBuffer buffer = DIRECT_BUFFER.get();
+                buffer.clear();
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+                return;
+            } catch (UnsupportedOperationException e) {
+                md.reset(); // fall back to streams below
+            }
+        }
+        try (InputStream in = new FileInputStream(fileName)) {
+            byte[] buffer = HEAP_BUFFER.get();
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                md.update(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Copies the whole content of file FROM to OUT and feeds it into MD on
+     * the way, so the file is read once. With channels, and when OUT is a
+     * file, the data goes through a large direct buffer.
+     */
+    public static void copyAndDigest(String from, OutputStream out, MessageDigest md) throws IOException {
+        if (useChannels() && out instanceof FileOutputStream) {
+            FileChannel target = ((FileOutputStream) out).getChannel();
+            try (FileChannel in = new FileInputStream(from).getChannel()) {
+                ByteBuffer buffer = DIRECT_BUFFER.get();
+                buffer.clear();
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.rewind();
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+            return;
+        }
+        try (InputStream in = new FileInputStream(from)) {
+            byte[] buffer = HEAP_BUFFER.get();
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                md.update(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Appends COUNT bytes of file FROM, starting at POSITION, to OUT. OUT must
+     * be freshly opened so that a failed transfer can be rolled back.
+     */
+    public static void transfer(String from, long position, long count, FileOutputStream out) throws IOException {
+        if (useChannels()) {
+            FileChannel target = out.getChannel();
+            long start = target.position();
+            try (FileChannel source = new FileInputStream(from).getChannel()) {
+                long done = 0;
+                while (done < count) {
+                    long n = source.transferTo(position + done, count - done, target);
+                    if (n <= 0) {
+                        break;
+                    }
+                    done += n;
+                }
+                if (done == count) {
+                    return;
+                }
+            } catch (UnsupportedOperationException e) {
+                // not supported by this file system, fall back to streams below
+            }
+            target.truncate(start);
+            target.position(start);
+        }
+        try (InputStream in = new FileInputStream(from)) {
+            skipFully(in, position);
+            copy(in, out, count);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = HEAP_BUFFER.get();
+        while (count > 0) {
+            int length = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (length < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            out.write(buffer, 0, length);
+            count -= length;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -1,5 +1,5 @@
+import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -10,18 +10,30 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.CopyOption;
 import java.nio.file.StandardCopyOption;
-import java.io.File;
-import java.security.MessageDigest;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by prakhash on 22/03/16.
  */
 
 class FileInfo implements Serializable {
+    private static final long serialVersionUID = 7209516446272346027L;
+
     public String path;                              // Path and file name
-    public String md5;                               // MD5 hash of the file
+    public String md5;                               // Hash of the file content
     public int latestCommit;                         // Commit id where last changed was made
+    public List<String> chunks;                      // Hashes of the chunks of a large file, or null
+
+    /* Values of the checkout.mode setting */
+    public static final String COPY = "copy";
+    public static final String HARDLINK = "hardlink";
+    public static final String SYMLINK = "symlink";
+    public static final int DEFAULT_CHUNK_THRESHOLD = 8 << 20;
 
     /**
      * Constructs a new file given its filename and commitID.
@@ -36,13 +48,24 @@ class FileInfo implements Serializable {
      */
     public void restore(boolean isConflict) {
         try {
-            Path from = Paths.get(getCachedPath(path));
             Path to;
             if (!isConflict) {
                 to = Paths.get(path);
             } else {
                 to = Paths.get(path + ".conflicted"); 
             }
+            if (to.getParent() != null) {
+                Files.createDirectories(to.getParent());
+            }
+            if (chunks != null || ObjectStore.contains(md5)) {
+                Files.deleteIfExists(to); // never write through a link into the store
+                String mode = Config.get(Config.CHECKOUT_MODE, COPY);
+                if (isConflict || mode.equals(COPY) || !link(to, mode)) {
+                    ObjectStore.copyTo(md5, chunks, to);
+                }
+                return;
+            }
+            Path from = Paths.get(getCachedPath(path)); // snapshot taken before the object store existed
             CopyOption[] options = new CopyOption[] {
                 StandardCopyOption.REPLACE_EXISTING,
                 StandardCopyOption.COPY_ATTRIBUTES
@@ -54,31 +77,105 @@ class FileInfo implements Serializable {
     }
 
     /**
-     * Takes a snapshot of the file and saves in version control folder.
+     * Links TO to the read-only snapshot of this file, either as a hard link
+     * or a symbolic link. Returns false if the file system cannot link it.
      */
-    public void snapshot() {
+    private boolean link(Path to, String mode) throws IOException {
+        Path raw = ObjectStore.materialize(md5, chunks);
         try {
-            File out = new File(getCachedPath(path));
-            if (!out.getParentFile().exists()) {
-                out.getParentFile().mkdirs();
+            if (mode.equals(HARDLINK)) {
+                Files.createLink(to, raw);
+            } else {
+                Files.createSymbolicLink(to, raw.toAbsolutePath().normalize());
             }
-            InputStream is = Files.newInputStream(Paths.get(path));
-            OutputStream os = Files.newOutputStream(Paths.get(getCachedPath(path)));
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            DigestInputStream dis = new DigestInputStream(is, md);
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = dis.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the working file is still a link to the read-only
+     * snapshot of this file and the snapshot is intact, in which case the
+     * file cannot have been modified. Editors that save by replacing the file
+     * break the link, writes through the link alter the snapshot, and in both
+     * cases this returns false.
+     */
+    public boolean isLinked() {
+        try {
+            Path working = Paths.get(path);
+            Path raw = Paths.get(ObjectStore.getRawPath(md5));
+            if (!ObjectStore.isRawIntact(md5)) { // written through the link, so not our snapshot any more
+                return false;
             }
-            md5 = Util.getHexFromBytes(md.digest());
-            is.close();
-            os.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (Files.isSymbolicLink(working)) {
+                return Files.readSymbolicLink(working).equals(raw.toAbsolutePath().normalize());
+            }
+            return Files.exists(working) && Files.isSameFile(working, raw);
+        } catch (IOException e) {
+            return false;
         }
     }
 
+    /**
+     * Takes a snapshot of the file and saves in version control folder. Content
+     * already present in the object store is not copied again. Files of at
+     * least core.chunkThreshold bytes are split into content defined chunks,
+     * and only chunks that are not stored yet are written. The file is read
+     * once, and hashed on the way unless its hash is cached. The hash is
+     * only set once everything is stored, and an error leaves it unset.
+     */
+    public void snapshot() throws IOException {
+        BasicFileAttributes stat = StatCache.stat(path);
+        if (stat == null) {
+            throw new IOException("Cannot read " + path);
+        }
+        String cached = StatCache.cached(path, stat);
+        long hashedAt = System.currentTimeMillis();
+        HashAlgorithm algorithm = HashAlgorithm.configured();
+        String hash;
+        if (stat.size() < Config.getInt(Config.CHUNK_THRESHOLD, DEFAULT_CHUNK_THRESHOLD)) {
+            if (cached != null && ObjectStore.contains(cached)) {
+                md5 = cached;
+                return;
+            }
+            hash = ObjectStore.put(path, algorithm.newFileDigest(stat.size())); // hashed while copied
+        } else {
+            MessageDigest digest = algorithm.newFileDigest(stat.size());
+            List<String> stored = new ArrayList<String>();
+            try (InputStream in = new DigestInputStream(new FileInputStream(path), digest)) {
+                Chunker chunker = new Chunker(in);
+                byte[] chunk;
+                while ((chunk = chunker.next()) != null) {
+                    String chunkHash = Util.getHexFromBytes(algorithm.newDigest().digest(chunk));
+                    ObjectStore.put(chunkHash, chunk);
+                    stored.add(chunkHash);
+                }
+            }
+            hash = Util.getHexFromBytes(digest.digest());
+            chunks = stored;
+        }
+        if (cached == null && StatCache.unchanged(path, stat)) {
+            StatCache.remember(path, stat, hashedAt, hash, null);
+        }
+        md5 = hash;
+    }
+
+    /**
+     * Returns the hashes of all objects this file is stored in.
+     */
+    public List<String> getObjects() {
+        return chunks != null ? chunks : Collections.singletonList(md5);
+    }
+
+    /**
+     * Returns true if OTHER records the same snapshot made in the same commit.
+     */
+    public boolean isSameSnapshot(FileInfo other) {
+        return this == other || md5.equals(other.md5) && latestCommit == other.latestCommit
+            && (chunks == null ? other.chunks == null : chunks.equals(other.chunks));
+    }
+
     /**
      * Given the location of the file in current working directory, returns the
      * path of the relative file in the version control system folder
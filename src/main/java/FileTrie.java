@@ -0,0 +1,347 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable map from path to file, stored as a hash array mapped trie.
+ * Adding or removing a file copies only the nodes on the way to it and
+ * shares everything else with the original, so a commit derived from its
+ * parent costs memory proportional to what changed. Because unchanged parts
+ * are the very same objects, the changes between two related tries can be
+ * found without visiting the shared parts.
+ */
+
+class FileTrie extends AbstractMap<String, FileInfo> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    public static final FileTrie EMPTY = new FileTrie(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private FileTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns a trie holding the given files.
+     */
+    public static FileTrie from(Map<String, FileInfo> files) {
+        if (files instanceof FileTrie) {
+            return (FileTrie) files;
+        }
+        FileTrie trie = EMPTY;
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            trie = trie.plus(entry.getKey(), entry.getValue());
+        }
+        return trie;
+    }
+
+    /**
+     * Returns a trie that also maps PATH to FILE.
+     */
+    public FileTrie plus(String path, FileInfo file) {
+        int[] added = new int[1];
+        Node newRoot = put(root, 0, new Leaf(hash(path), path, file), added);
+        return newRoot == root ? this : new FileTrie(newRoot, size + added[0]);
+    }
+
+    /**
+     * Returns a trie without PATH.
+     */
+    public FileTrie minus(String path) {
+        if (!containsKey(path)) {
+            return this;
+        }
+        return new FileTrie(remove(root, 0, hash(path), path), size - 1);
+    }
+
+    public FileInfo get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String path = (String) key;
+        int h = hash(path);
+        Object node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.key.equals(path) ? leaf.value : null;
+            }
+            Node n = (Node) node;
+            if (n.leaves != null) { // collision node
+                for (Leaf leaf : n.leaves) {
+                    if (leaf.key.equals(path)) {
+                        return leaf.value;
+                    }
+                }
+                return null;
+            }
+            int bit = 1 << ((h >>> shift) & MASK);
+            if ((n.bitmap & bit) == 0) {
+                return null;
+            }
+            node = n.children[Integer.bitCount(n.bitmap & (bit - 1))];
+        }
+        return null;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Set<Map.Entry<String, FileInfo>> entrySet() {
+        return new AbstractSet<Map.Entry<String, FileInfo>>() {
+            public Iterator<Map.Entry<String, FileInfo>> iterator() {
+                List<Map.Entry<String, FileInfo>> entries = new ArrayList<Map.Entry<String, FileInfo>>(size);
+                collect(root, entries);
+                return entries.iterator();
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns the files that differ between this trie and BASE. Files that
+     * are only in BASE map to null. Subtrees shared by both are skipped.
+     */
+    public Map<String, FileInfo> changesSince(FileTrie base) {
+        Map<String, FileInfo> changes = new HashMap<String, FileInfo>();
+        diff(base.root, root, changes);
+        return changes;
+    }
+
+    /**
+     * A trie node. Regular nodes have a bitmap of occupied slots and one
+     * child (Leaf or Node) per set bit. Once all hash bits are used up, paths
+     * with equal hashes share a collision node that lists them in LEAVES.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] children;
+        final Leaf[] leaves;
+
+        Node(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+            this.leaves = null;
+        }
+
+        Node(Leaf[] leaves) {
+            this.bitmap = 0;
+            this.children = null;
+            this.leaves = leaves;
+        }
+    }
+
+    private static final class Leaf implements Map.Entry<String, FileInfo> {
+        final int hash;
+        final String key;
+        final FileInfo value;
+
+        Leaf(int hash, String key, FileInfo value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public FileInfo getValue() {
+            return value;
+        }
+
+        public FileInfo setValue(FileInfo value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static Node put(Object node, int shift, Leaf leaf, int[] added) {
+        if (node == null) {
+            added[0] = 1;
+            return new Node(1 << ((leaf.hash >>> shift) & MASK), new Object[] {leaf});
+        }
+        Node n = (Node) node;
+        if (n.leaves != null) {
+            Leaf[] leaves = n.leaves;
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(leaf.key)) {
+                    if (leaves[i].value == leaf.value) {
+                        return n;
+                    }
+                    Leaf[] copy = leaves.clone();
+                    copy[i] = leaf;
+                    return new Node(copy);
+                }
+            }
+            Leaf[] copy = new Leaf[leaves.length + 1];
+            System.arraycopy(leaves, 0, copy, 0, leaves.length);
+            copy[leaves.length] = leaf;
+            added[0] = 1;
+            return new Node(copy);
+        }
+        int bit = 1 << ((leaf.hash >>> shift) & MASK);
+        int index = Integer.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) == 0) {
+            Object[] children = new Object[n.children.length + 1];
+            System.arraycopy(n.children, 0, children, 0, index);
+            children[index] = leaf;
+            System.arraycopy(n.children, index, children, index + 1, n.children.length - index);
+            added[0] = 1;
+            return new Node(n.bitmap | bit, children);
+        }
+        Object child = n.children[index];
+        Object newChild;
+        if (child instanceof Leaf) {
+            Leaf existing = (Leaf) child;
+            if (existing.key.equals(leaf.key)) {
+                if (existing.value == leaf.value) {
+                    return n;
+                }
+                newChild = leaf;
+            } else {
+                added[0] = 1;
+                newChild = merge(existing, leaf, shift + BITS);
+            }
+        } else {
+            newChild = put(child, shift + BITS, leaf, added);
+            if (newChild == child) {
+                return n;
+            }
+        }
+        Object[] children = n.children.clone();
+        children[index] = newChild;
+        return new Node(n.bitmap, children);
+    }
+
+    /**
+     * Returns the smallest subtree holding two leaves with different paths.
+     */
+    private static Node merge(Leaf a, Leaf b, int shift) {
+        if (shift >= 32) {
+            return new Node(new Leaf[] {a, b});
+        }
+        int slotA = (a.hash >>> shift) & MASK;
+        int slotB = (b.hash >>> shift) & MASK;
+        if (slotA == slotB) {
+            return new Node(1 << slotA, new Object[] {merge(a, b, shift + BITS)});
+        }
+        return new Node(1 << slotA | 1 << slotB, slotA < slotB ? new Object[] {a, b} : new Object[] {b, a});
+    }
+
+    /**
+     * Returns NODE without PATH, which must be present, or null if it becomes empty.
+     */
+    private static Node remove(Node n, int shift, int h, String path) {
+        if (n.leaves != null) {
+            if (n.leaves.length == 1) {
+                return null;
+            }
+            Leaf[] copy = new Leaf[n.leaves.length - 1];
+            int j = 0;
+            for (Leaf leaf : n.leaves) {
+                if (!leaf.key.equals(path)) {
+                    copy[j++] = leaf;
+                }
+            }
+            return new Node(copy);
+        }
+        int bit = 1 << ((h >>> shift) & MASK);
+        int index = Integer.bitCount(n.bitmap & (bit - 1));
+        Object child = n.children[index];
+        Object newChild = child instanceof Leaf ? null : remove((Node) child, shift + BITS, h, path);
+        if (newChild != null) {
+            Object[] children = n.children.clone();
+            children[index] = newChild;
+            return new Node(n.bitmap, children);
+        }
+        if (n.children.length == 1) {
+            return null;
+        }
+        Object[] children = new Object[n.children.length - 1];
+        System.arraycopy(n.children, 0, children, 0, index);
+        System.arraycopy(n.children, index + 1, children, index, children.length - index);
+        return new Node(n.bitmap & ~bit, children);
+    }
+
+    private static void collect(Object node, List<? super Leaf> out) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            out.add((Leaf) node);
+            return;
+        }
+        Node n = (Node) node;
+        if (n.leaves != null) {
+            for (Leaf leaf : n.leaves) {
+                out.add(leaf);
+            }
+        } else {
+            for (Object child : n.children) {
+                collect(child, out);
+            }
+        }
+    }
+
+    /**
+     * Records in CHANGES how subtree NEW differs from subtree OLD, both
+     * found at the same position in their tries.
+     */
+    private static void diff(Object old, Object now, Map<String, FileInfo> changes) {
+        if (old == now) {
+            return;
+        }
+        if (old instanceof Node && now instanceof Node
+                && ((Node) old).leaves == null && ((Node) now).leaves == null) {
+            Node o = (Node) old;
+            Node n = (Node) now;
+            for (int bits = o.bitmap | n.bitmap; bits != 0; bits &= bits - 1) {
+                int bit = bits & -bits;
+                Object oc = (o.bitmap & bit) == 0 ? null : o.children[Integer.bitCount(o.bitmap & (bit - 1))];
+                Object nc = (n.bitmap & bit) == 0 ? null : n.children[Integer.bitCount(n.bitmap & (bit - 1))];
+                diff(oc, nc, changes);
+            }
+            return;
+        }
+        // Shapes differ, so compare the leaves of both small subtrees directly
+        List<Leaf> oldLeaves = new ArrayList<Leaf>();
+        List<Leaf> newLeaves = new ArrayList<Leaf>();
+        collect(old, oldLeaves);
+        collect(now, newLeaves);
+        Map<String, FileInfo> before = new HashMap<String, FileInfo>();
+        for (Leaf leaf : oldLeaves) {
+            before.put(leaf.key, leaf.value);
+        }
+        for (Leaf leaf : newLeaves) {
+            FileInfo previous = before.remove(leaf.key);
+            if (previous == null || !previous.isSameSnapshot(leaf.value)) {
+                changes.put(leaf.key, leaf.value);
+            }
+        }
+        for (String path : before.keySet()) {
+            changes.put(path, null);
+        }
+    }
+
+    private static int hash(String path) {
+        int h = path.hashCode();
+        return h ^ (h >>> 16) * 0x45D9F3B;
+    }
+}
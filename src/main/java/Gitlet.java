@@ -1,6 +1,8 @@
 import validation.Validation;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -11,40 +13,45 @@ import java.util.*;
  */
 
 public class Gitlet implements Serializable {
+    private static final long serialVersionUID = 7539482029006490573L;
 
-    private List<Commit> commits;                    // A list of all commits
+    private List<Commit> commits;                    // All commits, only filled when converting an old gitlet.ser
     private Map<String, Branch> branches;            // A collection of all branches
     private Map<String, Remote> remotes;             // A collection of all remotes
-    private Map<String, List<Commit>> msgToCommit;   // A mapping from commit messages to commits
     private Branch currentBranch;                    // Current branch
+    private int nextCommitID;                        // ID given to the next commit
 private Validation validation=new Validation();
     /* Constants that are used in this class */
     public static final String GITLET_DIR = "./gitlet";
     public static final String BRANCH_DIR = GITLET_DIR + "/branches";
     public static final String COMMIT_DIR = GITLET_DIR + "/commits";
+    public static final String OBJECT_DIR = GITLET_DIR + "/objects";
+    public static final String PACK_DIR = OBJECT_DIR + "/pack";
+    public static final String RAW_DIR = OBJECT_DIR + "/raw";
+    public static final String EXPORT_FILE = GITLET_DIR + "/myfile.csv";
+    public static final int DEFAULT_PACK_DEPTH = 10;
+
+    private static boolean keepLoaded;               // True in a daemon, which reuses the state between commands
+    private static Gitlet loaded;                    // State kept by a daemon, or null
+    private static String loadedStamp;               // Modification stamp of the files the kept state was read from
 
     /**
      * Constructs a default Gitlet version control system. Initializes some
      * data structures used to manipulate information in memory.
      */
     public Gitlet() {
-        commits = new ArrayList<Commit>();
         branches = new HashMap<String, Branch>();
         remotes = new HashMap<String, Remote>();
         currentBranch = null;
-        msgToCommit = new HashMap<String, List<Commit>>();
+        nextCommitID = 0;
     }
 
     /**
-     * Constructs a mapping from commit message to commit itself. There
-     * may be more than one commit with the same message, so a bucket is
-     * used to potentially collect and group all of them.
+     * Returns the commit with given id, or null if there is none. Commits
+     * are read from the commit log on demand.
      */
-    private void addCommitToMap(Commit commit) {
-        if (!msgToCommit.containsKey(commit.message)){
-            msgToCommit.put(commit.message, new ArrayList<Commit>());
-        }
-        msgToCommit.get(commit.message).add(commit);
+    private Commit getCommit(int commitID) {
+        return CommitLog.get(commitID);
     }
 
     /**
@@ -58,37 +65,38 @@ private Validation validation=new Validation();
             Util.createDirectory(GITLET_DIR);
             Util.createDirectory(BRANCH_DIR);
             Util.createDirectory(COMMIT_DIR);
+            Util.createDirectory(OBJECT_DIR);
             Gitlet init = new Gitlet();
             Branch defaultBranch = new Branch(null, "master");
             init.currentBranch = defaultBranch;
             init.branches.put(defaultBranch.name, defaultBranch);
             String message = "initial commit";
-            Commit firstCommit = new Commit(init.commits.size(), message, defaultBranch);
+            Commit firstCommit = new Commit(init.nextCommitID++, message, defaultBranch);
             defaultBranch.head = firstCommit;
-            init.commits.add(firstCommit);
-            init.addCommitToMap(firstCommit);
+            CommitLog.append(firstCommit);
             init.save();
         }
     }
     /**
-     * Mark a file to be added, which will be snapshotted at the time
-     * it is committed if it still remains on the list.
+     * Marks the files matched by given paths to be added: single files,
+     * directories, whose files are added recursively, and glob patterns.
+     * Their contents are stored right away, so committing them later only
+     * records the snapshots taken here.
      */
-    private void add(String fileName) {
-        if (!Util.fileExists(fileName)) {
-            System.out.println(Messages.NO_FILE);
-        } else if (!currentBranch.head.fileChanged(fileName)) {
-            System.out.println(Messages.FILE_UNCHANGED);
-        } else {
+    private void add(List<String> paths) {
+        Map<String, FileInfo> staged = new Stager(currentBranch.head).stage(paths);
+        for (String fileName : staged.keySet()) {
             validation.validate(new File(fileName));
-            currentBranch.markAddFile(fileName);
+        }
+        if (!staged.isEmpty()) {
+            currentBranch.markAddFiles(staged);
         }
     }
 
 
     /**
-     * Performs a commit action. All files marked to be added will be
-     * copied over to the version control system folders.
+     * Performs a commit action. All files marked to be added are recorded
+     * with the content stored when they were added.
      */
     private void commit(String message) {
         if (currentBranch.noStagedFile()) {
@@ -96,10 +104,9 @@ private Validation validation=new Validation();
         } else if (message.equals("")) {
             System.out.println(Messages.NO_COMMIT_MSG);
         } else {
-            Commit newCommit = new Commit(commits.size(), message, currentBranch);
+            Commit newCommit = new Commit(nextCommitID++, message, currentBranch);
             currentBranch.head = newCommit;
-            addCommitToMap(newCommit);
-            commits.add(newCommit);
+            CommitLog.append(newCommit);
             this.save();
         }
     }
@@ -117,27 +124,44 @@ private Validation validation=new Validation();
     }
 
     /**
-     * Prints a history of commits starting from the initial commit to
-     * head of current branch at present. 
+     * Prints a history of commits starting from the head of current branch
+     * back to the initial commit, as far as PRINTER wants them. Commits are
+     * read one at a time, so a short log of a long history stays cheap.
      */
-    private void log() {
-        Commit head = currentBranch.head;
-        while (head != null) {
-            head.print();
-            head = head.parent;
-        }
+    private void log(LogPrinter printer) {
+        for (Commit head = currentBranch.head; head != null && printer.print(head); head = head.getParent()) {}
+        printer.flush();
     }
 
     /**
-     * Prints a history of all commits starting from the initial commit to
-     * present, regardless of whether the commits are on current branch. 
+     * Prints a history of all commits starting from the latest commit back
+     * to the initial commit, regardless of whether the commits are on
+     * current branch, as far as PRINTER wants them.
      */
-    private void globalLog() {
+    private void globalLog(LogPrinter printer) {
+        for (int id = nextCommitID - 1; id >= 0; id--) {
+            Commit commit = CommitLog.get(id);
+            if (commit != null && !printer.print(commit)) {
+                break;
+            }
+        }
+        printer.flush();
+    }
 
-        File file=new File("gitlet/myfile.csv");
-        file.delete();
-        for (int i = commits.size()-1; i >= 0; i--) {
-            commits.get(i).print();
+    /**
+     * Writes the date, branch and message of all commits, latest first, to
+     * a CSV file for compare and other analysis.
+     */
+    private void exportLog(String fileName) {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName), 1 << 16))) {
+            for (int id = nextCommitID - 1; id >= 0; id--) {
+                Commit commit = CommitLog.get(id);
+                if (commit != null) {
+                    out.print(commit.getDate() + "," + commit.branchName + "," + commit.message + "\n");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -146,13 +170,18 @@ private Validation validation=new Validation();
      * commits found. 
      */
     private void find(String message) {
-        if (!msgToCommit.containsKey(message)) {
-            System.out.println(Messages.CANNOT_FIND_COMMIT);
-        } else {
-            for (Commit commit : msgToCommit.get(message)) {
-                commit.print();
+        boolean found = false;
+        LogPrinter printer = new LogPrinter();
+        for (Commit commit : CommitLog.getAll()) {
+            if (commit.message.equals(message)) {
+                printer.print(commit);
+                found = true;
             }
         }
+        printer.flush();
+        if (!found) {
+            System.out.println(Messages.CANNOT_FIND_COMMIT);
+        }
     }
 
     /**
@@ -174,6 +203,24 @@ private Validation validation=new Validation();
         currentBranch.printRemovedFiles();
     }
 
+    /**
+     * Prints the status, followed by the files of the working folder that
+     * were modified or deleted since committed or staged, and the files
+     * not tracked at all. The whole working folder is scanned.
+     */
+    private void fullStatus() {
+        status();
+        WorkingTree.Changes changes = new WorkingTree(currentBranch).scan();
+        System.out.println("\n=== Modifications Not Staged For Commit ===");
+        for (Map.Entry<String, String> file : changes.modified.entrySet()) {
+            System.out.println(file.getKey() + " (" + file.getValue() + ")");
+        }
+        System.out.println("\n=== Untracked Files ===");
+        for (String fileName : changes.untracked) {
+            System.out.println(fileName);
+        }
+    }
+
     /**
      * Restores given file from head commit in current branch to working direcotry.
      */
@@ -197,7 +244,7 @@ private Validation validation=new Validation();
         } else if (branch == null) {
             System.out.println(Messages.CANNOT_CHECKOUT);
         } else if (warnUser()) {
-            branch.head.restoreAllFiles();
+            branch.head.restoreAllFiles(currentBranch.head);
             currentBranch = branch;
             this.save();
         }
@@ -208,10 +255,10 @@ private Validation validation=new Validation();
      * overwrite existing file on current working directory. 
      */
     private void checkout(int commitID, String fileName) {
-        if (commitID < 0 || commitID >= commits.size()) {
+        Commit commit = getCommit(commitID);
+        if (commit == null) {
             System.out.println(Messages.COMMIT_MISSING);
         } else {
-            Commit commit = commits.get(commitID);
             if (!commit.hasFile(fileName)) {
                 System.out.println(Messages.COMMIT_NO_FILE);
             } else if (warnUser()) {
@@ -231,6 +278,7 @@ private Validation validation=new Validation();
         } else {
             Branch newBranch = new Branch(currentBranch.head, branchName);
             branches.put(branchName, newBranch);
+            CommitLog.appendSplit(newBranch.head);
             this.save();
         }
     }
@@ -254,12 +302,12 @@ private Validation validation=new Validation();
      * Resets head of current branch to a certain commit.
      */
     private void reset(int commitID) {
-        if (commitID < 0 || commitID >= commits.size()) {
+        Commit commit = getCommit(commitID);
+        if (commit == null) {
             System.out.println(Messages.COMMIT_MISSING);
         } else if (warnUser()) {
-            Commit commit = commits.get(commitID);
+            commit.resetAllFiles(currentBranch.head);
             currentBranch.head = commit;
-            commit.restoreAllFiles();
             this.save();
         }
     }
@@ -274,24 +322,27 @@ private Validation validation=new Validation();
             System.out.println(Messages.CANNOT_FIND_BRANCH);
         } else if (branchName.equals(currentBranch.name)) {
             System.out.println(Messages.CANNOT_MERGE_SELF);
+        } else if (branches.get(branchName).head.isInBranch(currentBranch)) {
+            System.out.println(Messages.UP_TO_DATE); // nothing in it the current branch lacks
         } else if (warnUser()) {
             Commit from = branches.get(branchName).head;
             Commit to = currentBranch.head;
+            FileTrie before = to.getFiles();
             to.mergeFrom(from, true); // merge and resolve conflict
-            to.restoreAllFiles();
+            to.restoreAllFiles(before);
         }
     }
 
 
     private void compare_branches(Gitlet gitlet){
-        gitlet.globalLog();
+        gitlet.exportLog(EXPORT_FILE);
 
         String line = "";
         HashSet<String> set=new HashSet();
 
 
         try {
-            BufferedReader br=new BufferedReader((new FileReader("gitlet/myfile.csv")));
+            BufferedReader br=new BufferedReader((new FileReader(EXPORT_FILE)));
 
             ArrayList<CommitDetails> commitDetails=new ArrayList<>();
 
@@ -374,6 +425,243 @@ private Validation validation=new Validation();
 
     }
 
+    /**
+     * Moves the snapshots of all commits into a new pack. Versions of the same
+     * path are stored as deltas against each other, with at most MAXDEPTH
+     * deltas in a chain. Loose snapshots and older packs are removed afterwards.
+     */
+    private void repack(int maxDepth) {
+        Map<String, List<String>> histories = new TreeMap<String, List<String>>();
+        Set<String> trees = new HashSet<String>();
+        for (Commit commit : CommitLog.getAll()) {
+            if (commit.getTree() != null) {
+                try {
+                    Tree.collect(commit.getTree(), trees);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (FileInfo file : commit.getFiles().values()) {
+                if (file.chunks == null && !ObjectStore.contains(file.md5) && Util.fileExists(file.getCachedPath(file.path))) {
+                    try {
+                        ObjectStore.put(file.md5, file.getCachedPath(file.path));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (file.chunks != null) { // chunks are shared across versions already
+                    for (String chunk : file.chunks) {
+                        histories.put("\0" + chunk, Collections.singletonList(chunk));
+                    }
+                    continue;
+                }
+                List<String> history = histories.get(file.path);
+                if (history == null) {
+                    history = new ArrayList<String>();
+                    histories.put(file.path, history);
+                }
+                if (history.isEmpty() || !history.get(0).equals(file.md5)) {
+                    history.add(0, file.md5); // newest first
+                }
+            }
+        }
+        for (Branch branch : branches.values()) { // staged content is not in any commit yet
+            for (String fileName : branch.getAddFiles()) {
+                FileInfo staged = branch.getStagedFile(fileName);
+                if (staged == null) {
+                    continue;
+                }
+                if (staged.chunks != null) {
+                    for (String chunk : staged.chunks) {
+                        histories.put("\0" + chunk, Collections.singletonList(chunk));
+                    }
+                    continue;
+                }
+                List<String> history = histories.get(staged.path);
+                if (history == null) {
+                    history = new ArrayList<String>();
+                    histories.put(staged.path, history);
+                }
+                if (!history.contains(staged.md5)) {
+                    history.add(0, staged.md5);
+                }
+            }
+        }
+        for (String tree : trees) { // trees are shared across commits already
+            histories.put("\0" + tree, Collections.singletonList(tree));
+        }
+        List<PackFile> oldPacks = ObjectStore.getPacks();
+        long before = 0;
+        for (PackFile pack : oldPacks) {
+            before += pack.size();
+        }
+        try {
+            String packPath = PACK_DIR + "/pack-" + System.currentTimeMillis();
+            Set<String> packed = PackFile.write(packPath, new ArrayList<List<String>>(histories.values()), maxDepth);
+            Journal.force(Paths.get(packPath + ".pack")); // on disk before the copies it replaces are removed
+            Journal.force(Paths.get(packPath + ".idx"));
+            for (String hash : packed) {
+                if (ObjectStore.isLoose(hash)) {
+                    before += new File(ObjectStore.getObjectPath(hash)).length();
+                    ObjectStore.removeLoose(hash);
+                }
+            }
+            for (PackFile pack : oldPacks) {
+                pack.delete();
+            }
+            ObjectStore.reloadPacks();
+            PackFile pack = new PackFile(packPath);
+            System.out.println("Packed " + packed.size() + " objects, " + before + " bytes into " + pack.size() + " bytes.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes commits that can no longer be reached from any branch head,
+     * together with snapshots that only those commits referred to. With
+     * DRYRUN set nothing is deleted, only reported.
+     */
+    private void gc(boolean dryRun) {
+        CommitBitmap reachable = new CommitBitmap();
+        for (Branch branch : branches.values()) {
+            reachable = reachable.or(CommitGraph.reachable(branch.head.id));
+        }
+
+        List<Commit> live = new ArrayList<Commit>();
+        Set<String> liveObjects = new HashSet<String>();
+        Set<String> liveTrees = new HashSet<String>();
+        long reclaimed = 0;
+        int removedCommits = 0;
+        for (Commit commit : CommitLog.getAll()) {
+            if (reachable.contains(commit.id)) {
+                live.add(commit);
+                if (commit.getTree() != null) {
+                    try {
+                        Tree.collect(commit.getTree(), liveTrees);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                for (FileInfo file : commit.getFiles().values()) {
+                    liveObjects.add(file.md5); // names the plain copy of chunked files
+                    liveObjects.addAll(file.getObjects());
+                }
+            } else {
+                removedCommits++;
+                reclaimed += Util.sizeOf(new File(commit.getCommitPath()));
+                if (!dryRun) {
+                    Util.deleteRecursively(new File(commit.getCommitPath()));
+                }
+            }
+        }
+
+        liveObjects.addAll(liveTrees);
+        for (Branch branch : branches.values()) { // staged content is not in any commit yet
+            for (String fileName : branch.getAddFiles()) {
+                FileInfo staged = branch.getStagedFile(fileName);
+                if (staged != null) {
+                    liveObjects.add(staged.md5);
+                    liveObjects.addAll(staged.getObjects());
+                }
+            }
+        }
+        int removedObjects = 0;
+        for (String hash : ObjectStore.listLoose()) {
+            if (!liveObjects.contains(hash)) {
+                removedObjects++;
+                reclaimed += new File(ObjectStore.getObjectPath(hash)).length();
+                if (!dryRun) {
+                    ObjectStore.removeLoose(hash);
+                }
+            }
+        }
+        Set<String> linkedRaw;
+        try {
+            linkedRaw = ObjectStore.listLinkedRaw();
+        } catch (IOException e) {
+            e.printStackTrace();
+            linkedRaw = new HashSet<String>(ObjectStore.listRaw()); // keep every plain copy rather than guess
+        }
+        for (String hash : ObjectStore.listRaw()) {
+            if (!liveObjects.contains(hash) && !linkedRaw.contains(hash)) {
+                reclaimed += new File(ObjectStore.getRawPath(hash)).length();
+                if (!dryRun) {
+                    new File(ObjectStore.getRawPath(hash)).delete();
+                }
+            }
+        }
+        boolean packGarbage = false;
+        try {
+            for (PackFile pack : ObjectStore.getPacks()) {
+                for (String hash : pack.hashes()) {
+                    if (!liveObjects.contains(hash)) {
+                        packGarbage = true;
+                        removedObjects++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (dryRun) {
+            System.out.println("Would remove " + removedCommits + " commits and " + removedObjects
+                + " snapshots, reclaiming at least " + reclaimed + " bytes.");
+            return;
+        }
+        CommitLog.rewrite(live);
+        CommitGraph.prune();
+        this.save();
+        if (packGarbage) { // packs only shrink by being rewritten
+            long before = Util.sizeOf(new File(PACK_DIR));
+            repack(DEFAULT_PACK_DEPTH);
+            reclaimed += before - Util.sizeOf(new File(PACK_DIR));
+        }
+        System.out.println("Removed " + removedCommits + " commits and " + removedObjects
+            + " snapshots, reclaimed " + reclaimed + " bytes.");
+    }
+
+    /**
+     * Prints the value of given setting.
+     */
+    private void config(String key) {
+        System.out.println(Config.get(key, ""));
+    }
+
+    /**
+     * Changes given setting to VALUE. Only affects data written afterwards.
+     * The hash algorithm names stored content, so it cannot change once
+     * any file is committed or staged.
+     */
+    private void config(String key, String value) {
+        if (!Config.isValid(key, value)) {
+            System.out.println(String.format(Messages.INVALID_CONFIG_VALUE, value, key));
+        } else if (key.equals(Config.HASH) && HashAlgorithm.forName(value) != HashAlgorithm.configured()
+                && hasSnapshots()) {
+            System.out.println(Messages.HASH_FIXED);
+        } else {
+            Config.set(key, value);
+        }
+    }
+
+    /**
+     * Returns true if any commit or branch holds a file snapshot.
+     */
+    private boolean hasSnapshots() {
+        for (Branch branch : branches.values()) {
+            if (!branch.getAddFiles().isEmpty()) {
+                return true;
+            }
+        }
+        for (Commit commit : CommitLog.getAll()) {
+            if (!commit.getFiles().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void push(String remoteName, String remoteBranchName) {
 
     }
@@ -394,16 +682,70 @@ private Validation validation=new Validation();
     private boolean warnUser() {
         Scanner sc = new Scanner(System.in);
         System.out.println(Messages.DANGEROURS);
-        while (!sc.hasNextLine()) {}
-        return sc.next().toUpperCase().equals("YES");
+        return sc.hasNextLine() && sc.nextLine().trim().toUpperCase().equals("YES");
     }
 
     /**
-     * Saves the current state of the version control system to disk by
-     * serializing necessary information.
+     * Saves the current state of the version control system to disk. Commits
+     * are appended to the commit log as they are made, so only the branch
+     * heads need to be written here.
      */
     private void save() {
-        Util.serialize(this, GITLET_DIR + "/gitlet.ser");
+        CommitLog.Refs refs = new CommitLog.Refs();
+        refs.currentBranch = currentBranch.name;
+        refs.nextCommitID = nextCommitID;
+        for (Branch branch : branches.values()) {
+            refs.heads.put(branch.name, branch.head.id);
+        }
+        CommitLog.writeRefs(refs);
+    }
+
+    /**
+     * Loads the state of the version control system from disk. Only the
+     * branch heads are read, other commits are read when first needed. A
+     * repository still stored as a single serialized gitlet.ser is converted
+     * first. The old file is kept until the converted one has been saved,
+     * and removed by the next command.
+     */
+    private static Gitlet load() {
+        String stamp = keepLoaded ? stamp() : null;
+        if (loaded != null && stamp.equals(loadedStamp)) {
+            return loaded;
+        }
+        forget();
+        if (!CommitLog.exists() && Util.fileExists(GITLET_DIR + "/gitlet.ser")) {
+            Gitlet old = (Gitlet) Util.deserialize(GITLET_DIR + "/gitlet.ser");
+            if (old == null) {
+                return null;
+            }
+            for (Commit commit : old.commits) {
+                CommitLog.append(commit);
+                for (int i = 0; i < commit.numChildren; i++) {
+                    CommitLog.appendSplit(commit);
+                }
+                old.nextCommitID = Math.max(old.nextCommitID, commit.id + 1);
+            }
+            old.save();
+        } else if (Util.fileExists(GITLET_DIR + "/gitlet.ser")) {
+            new File(GITLET_DIR + "/gitlet.ser").delete();
+        }
+        try {
+            Gitlet gitlet = new Gitlet();
+            CommitLog.Refs refs = CommitLog.readRefs();
+            gitlet.nextCommitID = refs.nextCommitID;
+            for (Map.Entry<String, Integer> head : refs.heads.entrySet()) {
+                gitlet.branches.put(head.getKey(), Branch.open(head.getKey(), CommitLog.get(head.getValue())));
+            }
+            gitlet.currentBranch = gitlet.branches.get(refs.currentBranch);
+            if (keepLoaded) {
+                loaded = gitlet;
+                loadedStamp = stamp;
+            }
+            return gitlet;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
@@ -426,10 +768,13 @@ private Validation validation=new Validation();
     private static void noArgument(Gitlet gitlet, String[] args) {
         switch (args[0]) {
             case "log":
-                gitlet.log();
+                gitlet.log(new LogPrinter());
                 break;
             case "global-log":
-                gitlet.globalLog();
+                gitlet.globalLog(new LogPrinter());
+                break;
+            case "export-log":
+                gitlet.exportLog(EXPORT_FILE);
                 break;
             case "status":
                 gitlet.status();
@@ -440,6 +785,12 @@ private Validation validation=new Validation();
             case "compare":
                 gitlet.compare_branches(gitlet);
                 break;
+            case "repack":
+                gitlet.repack(DEFAULT_PACK_DEPTH);
+                break;
+            case "gc":
+                gitlet.gc(false);
+                break;
             default:
                 System.out.println(Messages.INVALID_COMMAND);
                 break;
@@ -451,12 +802,12 @@ private Validation validation=new Validation();
      */
     private static void oneArgument(Gitlet gitlet, String[] args) {
         switch (args[0]) {
-            case "add":
-                gitlet.add(args[1]);
-                break;
             case "commit":
                 gitlet.commit(args[1]);
                 break;
+            case "export-log":
+                gitlet.exportLog(args[1]);
+                break;
             case "rm":
                 gitlet.remove(args[1]);
                 break;
@@ -481,6 +832,26 @@ private Validation validation=new Validation();
             case "checkout":
                 gitlet.checkout(args[1]);
                 break;
+            case "repack":
+                gitlet.repack(Integer.parseInt(args[1]));
+                break;
+            case "config":
+                gitlet.config(args[1]);
+                break;
+            case "status":
+                if (args[1].equals("--full")) {
+                    gitlet.fullStatus();
+                } else {
+                    System.out.println(Messages.INVALID_COMMAND);
+                }
+                break;
+            case "gc":
+                if (args[1].equals("--dry-run")) {
+                    gitlet.gc(true);
+                } else {
+                    System.out.println(Messages.INVALID_COMMAND);
+                }
+                break;
             default:
                 System.out.println(Messages.INVALID_COMMAND);
                 break;
@@ -501,6 +872,9 @@ private Validation validation=new Validation();
             case "pull":
                 gitlet.pull(args[1], args[2]);
                 break;
+            case "config":
+                gitlet.config(args[1], args[2]);
+                break;
             default:
                 System.out.println(Messages.INVALID_COMMAND);
                 break;
@@ -509,26 +883,152 @@ private Validation validation=new Validation();
 
 
     /**
-     * Main entrance to the version control system.
+     * Makes LOAD keep the state in memory for the following commands, as
+     * long as no other process changes the repository.
+     */
+    static void keepLoaded() {
+        keepLoaded = true;
+    }
+
+    /**
+     * Drops everything read from disk, so the next command reads it again.
+     */
+    private static void forget() {
+        loaded = null;
+        CommitLog.reset();
+        ObjectStore.reloadPacks();
+        Config.reload();
+        StatCache.reload();
+        CommitGraph.reload();
+    }
+
+    /**
+     * Returns a summary of the modification times of the files the state
+     * is read from. Staging files are replaced by renames, which also
+     * updates the time of their branch folder.
+     */
+    private static String stamp() {
+        StringBuilder stamp = new StringBuilder();
+        String[] files = {CommitLog.getRefsPath(), CommitLog.getLogPath(), GITLET_DIR + "/config"};
+        File[] branchDirs = new File(BRANCH_DIR).listFiles();
+        List<File> all = new ArrayList<File>();
+        for (String file : files) {
+            all.add(new File(file));
+        }
+        if (branchDirs != null) {
+            all.addAll(Arrays.asList(branchDirs));
+        }
+        for (File f : all) {
+            try {
+                stamp.append(f.getName()).append(' ').append(f.length()).append(' ')
+                    .append(Files.getLastModifiedTime(f.toPath())).append('\n');
+            } catch (IOException e) {
+                stamp.append(f.getName()).append(" -\n"); // does not exist
+            }
+        }
+        return stamp.toString();
+    }
+
+    /**
+     * Main entrance to the version control system. Commands are sent to the
+     * daemon of the repository when one is running.
      */
     public static void main(String[] args) {
         if (args.length == 0) {
             System.out.println(Messages.ARGUMENT_MISSING);
+            return;
+        }
+        if (args[0].equals("daemon")) {
+            if (args.length == 1) {
+                Daemon.serve();
+            } else if (!Daemon.forward(args, System.out)) {
+                System.out.println(Messages.DAEMON_NOT_RUNNING);
+            }
+            return;
+        }
+        if (Util.fileExists(Daemon.getPath()) && Daemon.forward(args, System.out)) {
+            return;
+        }
+        if (Util.fileExists(GITLET_DIR)) {
+            Journal.recover();
+        }
+        execute(args);
+    }
+
+    /**
+     * Runs a single command in a transaction, so its changes to the
+     * repository are saved all at once or not at all.
+     */
+    static void execute(String[] args) {
+        Journal.begin();
+        boolean completed = false;
+        try {
+            run(args);
+            StatCache.flush(); // hashes and bitmaps learned by earlier reading commands too
+            CommitGraph.flush();
+            completed = true;
+        } finally {
+            if (!completed) {
+                Journal.abort();
+                forget();
+            } else if (!Journal.commit()) {
+                System.out.println(Messages.NOT_SAVED);
+                forget();
+            } else if (keepLoaded) {
+                loadedStamp = stamp(); // our own changes are already in memory
+            }
+        }
+    }
+
+    /**
+     * Runs a single command. Hashes and bitmaps it learned are kept in
+     * memory, and saved by the transaction around it.
+     */
+    static void run(String[] args) {
+        if (args[0].equals("init")) {
+            initialize();
         } else {
-            if (args[0].equals("init")) {
-                initialize();
+            dispatch(load(), args);
+        }
+    }
+
+    /**
+     * Reads the state again if another process changed the repository.
+     * The daemon calls this while no other command runs, so the caches are
+     * never dropped under a running command.
+     */
+    static void refresh() {
+        load();
+    }
+
+    /**
+     * Runs a command that only reads, on the state loaded by the last
+     * refresh, so that several can run at once.
+     */
+    static void query(String[] args) {
+        dispatch(loaded, args);
+    }
+
+    private static void dispatch(Gitlet gitlet, String[] args) {
+        if (args[0].equals("add") && args.length > 1) { // any number of paths
+            gitlet.add(Arrays.asList(args).subList(1, args.length));
+        } else if ((args[0].equals("log") || args[0].equals("global-log")) && args.length > 1) {
+            LogPrinter printer = LogPrinter.parse(Arrays.asList(args).subList(1, args.length));
+            if (printer == null) {
+                System.out.println(Messages.LOG_USAGE);
+            } else if (args[0].equals("log")) {
+                gitlet.log(printer);
             } else {
-                Gitlet gitlet = (Gitlet) Util.deserialize(GITLET_DIR + "/gitlet.ser");
-                if (args.length == 1) {
-                    noArgument(gitlet, args);
-                } else if (args.length == 2) {
-                    oneArgument(gitlet, args);
-                } else if (args.length == 3) {
-                    twoAruments(gitlet, args);
-                }  else {
-                    System.out.println(Messages.WRONG_ARGUMENT_LENGTH);
-                }
+                gitlet.globalLog(printer);
             }
+        } else if (args.length == 1) {
+            noArgument(gitlet, args);
+        } else if (args.length == 2) {
+            oneArgument(gitlet, args);
+        } else if (args.length == 3) {
+            twoAruments(gitlet, args);
+        }  else {
+            System.out.println(Messages.WRONG_ARGUMENT_LENGTH);
         }
     }
 }
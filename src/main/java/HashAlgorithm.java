@@ -0,0 +1,205 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Digests used to identify file contents. Files up to TREE_THRESHOLD bytes are
+ * hashed in one pass. Larger files are split into CHUNK_SIZE chunks that are
+ * hashed in parallel, and their hash is the digest of the chunk digests.
+ *
+ * The hash of a content is also its key in the object store, so core.hash
+ * must be a cryptographic digest, and is fixed once any file is stored.
+ * XXH64 is too short to name content safely. It is only used by the stat
+ * cache, to notice quickly whether a file still holds the content it had
+ * when its key was computed.
+ */
+
+enum HashAlgorithm {
+    MD5("MD5"),
+    SHA256("SHA-256"),
+    XXH64("XXH64");
+
+    public static final long CHUNK_SIZE = 4L << 20;
+    public static final long TREE_THRESHOLD = 2 * CHUNK_SIZE;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final String javaName;                   // Name of the MessageDigest implementation
+
+    HashAlgorithm(String javaName) {
+        this.javaName = javaName;
+    }
+
+    /**
+     * Returns the algorithm selected in the repository settings.
+     */
+    public static HashAlgorithm configured() {
+        HashAlgorithm algorithm = forName(Config.get(Config.HASH, "md5"));
+        return algorithm != null ? algorithm : MD5;
+    }
+
+    /**
+     * Returns the algorithm of given name that may name stored content, or
+     * null if there is none.
+     */
+    public static HashAlgorithm forName(String name) {
+        try {
+            HashAlgorithm algorithm = valueOf(name.replace("-", "").toUpperCase());
+            return algorithm != XXH64 ? algorithm : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a fresh digest of this algorithm.
+     */
+    public MessageDigest newDigest() {
+        if (this == XXH64) {
+            return new XXHash64();
+        }
+        try {
+            return MessageDigest.getInstance(javaName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a digest that gives the same hash as hashFile for content of
+     * SIZE bytes fed to it in order, so a file can be hashed while it is
+     * read for another purpose.
+     */
+    public MessageDigest newFileDigest(long size) {
+        return size <= TREE_THRESHOLD ? newDigest() : new TreeDigest(this);
+    }
+
+    /**
+     * Returns the hash of the content of given file.
+     */
+    public byte[] hashFile(String fileName) throws IOException {
+        long size = new File(fileName).length();
+        if (size <= TREE_THRESHOLD) {
+            MessageDigest md = newDigest();
+            FileIO.digest(fileName, md);
+            return md.digest();
+        }
+        try (FileChannel channel = new FileInputStream(fileName).getChannel()) {
+            List<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>();
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                chunks.add(ForkJoinPool.commonPool().submit(hashChunk(channel, position, Math.min(CHUNK_SIZE, size - position))));
+            }
+            MessageDigest root = newDigest();
+            for (Future<byte[]> chunk : chunks) {
+                root.update(chunk.get());
+            }
+            return root.digest();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to hash " + fileName, e);
+        }
+    }
+
+    /**
+     * Returns a task that hashes LENGTH bytes of CHANNEL starting at POSITION.
+     */
+    private Callable<byte[]> hashChunk(final FileChannel channel, final long position, final long length) {
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                MessageDigest md = newDigest();
+                ByteBuffer buffer = BUFFER.get();
+                long done = 0;
+                while (done < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - done));
+                    int n = channel.read(buffer, position + done);
+                    if (n < 0) {
+                        throw new IOException("File shrank while hashing");
+                    }
+                    buffer.flip();
+                    md.update(buffer);
+                    done += n;
+                }
+                return md.digest();
+            }
+        };
+    }
+
+    /**
+     * Hashes content in CHUNK_SIZE pieces, one after the other, and gives
+     * the digest of the piece digests, as hashFile does in parallel.
+     */
+    private static class TreeDigest extends MessageDigest {
+        private final HashAlgorithm algorithm;
+        private MessageDigest root;
+        private MessageDigest piece;
+        private long pieceLength;                    // Bytes fed to the current piece
+
+        TreeDigest(HashAlgorithm algorithm) {
+            super(algorithm.javaName);
+            this.algorithm = algorithm;
+            engineReset();
+        }
+
+        protected void engineUpdate(byte input) {
+            engineUpdate(new byte[] {input}, 0, 1);
+        }
+
+        protected void engineUpdate(byte[] input, int offset, int length) {
+            while (length > 0) {
+                int n = (int) Math.min(length, CHUNK_SIZE - pieceLength);
+                piece.update(input, offset, n);
+                pieceLength += n;
+                offset += n;
+                length -= n;
+                if (pieceLength == CHUNK_SIZE) {
+                    root.update(piece.digest());
+                    pieceLength = 0;
+                }
+            }
+        }
+
+        protected void engineUpdate(ByteBuffer input) {
+            while (input.hasRemaining()) {
+                int n = (int) Math.min(input.remaining(), CHUNK_SIZE - pieceLength);
+                ByteBuffer slice = input.duplicate();
+                slice.limit(slice.position() + n);
+                piece.update(slice);
+                input.position(input.position() + n);
+                pieceLength += n;
+                if (pieceLength == CHUNK_SIZE) {
+                    root.update(piece.digest());
+                    pieceLength = 0;
+                }
+            }
+        }
+
+        protected byte[] engineDigest() {
+            if (pieceLength > 0) {
+                root.update(piece.digest());
+            }
+            byte[] digest = root.digest();
+            engineReset();
+            return digest;
+        }
+
+        protected void engineReset() {
+            root = algorithm.newDigest();
+            piece = algorithm.newDigest();
+            pieceLength = 0;
+        }
+    }
+}
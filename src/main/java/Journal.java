@@ -0,0 +1,359 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Makes the metadata written by a command reach the disk all at once or
+ * not at all. Within a transaction, metadata files are kept in memory.
+ * Committing writes each of them to a temporary file next to its target,
+ * syncs those together with the pack holding the objects stored meanwhile
+ * and the commit log, and then writes the journal: the list of targets,
+ * protected by a CRC. A transaction thus costs a fixed number of syncs,
+ * however many objects it stores.
+ * Once the journal is on disk the temporary files are renamed over their
+ * targets and the journal is removed.
+ *
+ * If the process dies before the journal is complete, the targets are
+ * untouched and records appended to the commit log are cut off on the next
+ * start, using the log length kept in the refs file. If it dies after, the
+ * next start finishes the renames.
+ *
+ * The open transaction is kept in static fields without locks. Commands
+ * run one at a time, either in a process of their own or under the write
+ * lock of the daemon, and the reading commands the daemon runs side by
+ * side only look at the journal while no transaction is open. Only sync
+ * is called from the worker threads of a command, and it is synchronized.
+ */
+
+class Journal {
+    private static final int MAGIC = 0x474A524E;     // "GJRN"
+    private static final int VERSION = 1;
+    private static final String TMP = ".tmp";
+
+    private static Map<String, byte[]> pending = new LinkedHashMap<String, byte[]>(); // Target file to new content
+    private static Set<String> unsynced = new LinkedHashSet<String>(); // Files written directly, to sync before committing
+    private static int depth;                        // Number of open transactions
+    private static boolean failed;                   // Set when a write was lost, so the transaction must roll back
+    private static long logStart;                    // Length of the commit log when the transaction began
+
+    public static String getPath() {
+        return Gitlet.GITLET_DIR + "/journal";
+    }
+
+    /**
+     * Starts a transaction, or joins the one already open.
+     */
+    public static void begin() {
+        if (depth++ == 0) {
+            logStart = new File(CommitLog.getLogPath()).length();
+        }
+    }
+
+    /**
+     * Returns true if a transaction is open.
+     */
+    public static boolean isActive() {
+        return depth > 0;
+    }
+
+    /**
+     * Replaces the content of given file. Inside a transaction the new
+     * content is kept until commit, otherwise it is written atomically now.
+     */
+    public static void write(String fileName, byte[] data) throws IOException {
+        if (isActive()) {
+            pending.put(fileName, data);
+        } else {
+            writeAtomically(fileName, data);
+        }
+    }
+
+    /**
+     * Returns the content given file will have once the open transaction
+     * commits, or null if the transaction does not change it.
+     */
+    public static byte[] read(String fileName) {
+        return pending.get(fileName);
+    }
+
+    /**
+     * Returns true if the open transaction writes given file.
+     */
+    public static boolean isPending(String fileName) {
+        return pending.containsKey(fileName);
+    }
+
+    /**
+     * Notes that given file was written outside the journal and must be on
+     * disk before the open transaction commits. Without a transaction it is
+     * synced now. Safe to call from several threads.
+     */
+    public static synchronized void sync(String fileName) throws IOException {
+        if (isActive()) {
+            unsynced.add(fileName);
+        } else {
+            force(Paths.get(fileName));
+        }
+    }
+
+    /**
+     * Reports an error that lost part of the metadata of the open
+     * transaction, which will then roll back instead of committing.
+     */
+    public static void fail(IOException e) {
+        e.printStackTrace();
+        failed = isActive();
+    }
+
+    /**
+     * Ends a transaction. The outermost one writes everything to disk, and
+     * rolls back if that fails. Returns false if nothing was saved.
+     */
+    public static boolean commit() {
+        if (depth == 0 || --depth > 0) {
+            return true;
+        }
+        if (failed) {
+            abort();
+            return false;
+        }
+        try {
+            List<Path> packed = ObjectStore.seal();
+            if (packed.isEmpty() && pending.isEmpty() && unsynced.isEmpty()
+                    && new File(CommitLog.getLogPath()).length() == logStart) {
+                return true;
+            }
+            Set<Path> synced = new LinkedHashSet<Path>(packed);
+            for (Map.Entry<String, byte[]> file : pending.entrySet()) {
+                Path tmp = Paths.get(file.getKey() + TMP);
+                try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+                    out.write(file.getValue());
+                }
+                synced.add(tmp);
+            }
+            for (String fileName : unsynced) {
+                synced.add(Paths.get(fileName));
+            }
+            if (new File(CommitLog.getLogPath()).length() != logStart) {
+                synced.add(Paths.get(CommitLog.getLogPath()));
+            }
+            syncAll(synced);
+
+            writeJournal(new ArrayList<String>(pending.keySet()));
+            replay(new ArrayList<String>(pending.keySet()));
+            clear();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            abort();
+            return false;
+        }
+    }
+
+    /**
+     * Ends the open transactions without saving their metadata. Records
+     * appended to the commit log meanwhile are cut off.
+     */
+    public static void abort() {
+        ObjectStore.discard();
+        if (depth == 0 && pending.isEmpty() && unsynced.isEmpty() && !failed) {
+            return;
+        }
+        for (String fileName : pending.keySet()) {
+            new File(fileName + TMP).delete();
+        }
+        try {
+            truncateLog(logStart);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        new File(getPath()).delete();
+        clear();
+        depth = 0;
+    }
+
+    /**
+     * Brings the repository back to a consistent state after a crash:
+     * finishes a transaction whose journal is complete, otherwise cuts off
+     * commit log records that the refs file does not know about.
+     */
+    public static void recover() {
+        ObjectStore.discard();
+        try {
+            List<String> targets = readJournal();
+            if (targets != null) {
+                replay(targets);
+                return;
+            }
+            new File(getPath()).delete();
+            if (!CommitLog.exists()) { // no refs were ever saved, so the whole log is unfinished
+                truncateLog(0);
+            } else {
+                long logLength = CommitLog.readRefs().logLength;
+                if (logLength >= 0) {
+                    truncateLog(logLength);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces given file with DATA through a synced temporary file, so it
+     * holds either the old or the new content after a crash.
+     */
+    public static void writeAtomically(String fileName, byte[] data) throws IOException {
+        Path tmp = Paths.get(fileName + TMP);
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        Path target = Paths.get(fileName);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Writes the content of given file and its directory entry to disk.
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        forceDirectory(file.toAbsolutePath().getParent());
+    }
+
+    private static void syncAll(Set<Path> files) throws IOException {
+        Set<Path> directories = new LinkedHashSet<Path>();
+        for (Path file : files) {
+            if (!file.toFile().exists()) { // removed again later in the transaction
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+            directories.add(file.toAbsolutePath().getParent());
+        }
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+    }
+
+    /**
+     * Syncs a directory so renames within it are durable. Not every
+     * platform allows opening a directory, in which case this does nothing.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be synced here
+        }
+    }
+
+    private static void writeJournal(List<String> targets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(targets.size());
+        for (String target : targets) {
+            out.writeUTF(target);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        try (FileOutputStream file = new FileOutputStream(getPath())) {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        }
+        forceDirectory(Paths.get(getPath()).toAbsolutePath().getParent());
+    }
+
+    /**
+     * Returns the targets listed in a complete journal, or null if there is
+     * no journal or it was not completely written.
+     */
+    private static List<String> readJournal() throws IOException {
+        File file = new File(getPath());
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 20) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+        }
+        in.skip(data.length - 16);
+        if (in.readLong() != crc.getValue()) {
+            return null;
+        }
+        in = new DataInputStream(new ByteArrayInputStream(data, 8, data.length - 16));
+        List<String> targets = new ArrayList<String>();
+        for (int i = in.readInt(); i > 0; i--) {
+            targets.add(in.readUTF());
+        }
+        return targets;
+    }
+
+    /**
+     * Moves the temporary files of a committed journal over their targets
+     * and removes the journal. Targets already moved are skipped, so this
+     * can be repeated after another crash.
+     */
+    private static void replay(List<String> targets) throws IOException {
+        Set<Path> directories = new LinkedHashSet<Path>();
+        for (String target : targets) {
+            Path tmp = Paths.get(target + TMP);
+            if (tmp.toFile().exists()) {
+                Path to = Paths.get(target);
+                Files.move(tmp, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                directories.add(to.toAbsolutePath().getParent());
+            }
+        }
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+        new File(getPath()).delete();
+    }
+
+    private static void truncateLog(long length) throws IOException {
+        File log = new File(CommitLog.getLogPath());
+        if (log.exists() && log.length() > length) {
+            try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+                file.setLength(length);
+            }
+            CommitLog.reset();
+        }
+    }
+
+    private static void clear() {
+        pending = new LinkedHashMap<String, byte[]>();
+        unsynced = new LinkedHashSet<String>();
+        failed = false;
+    }
+}
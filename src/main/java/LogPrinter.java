@@ -0,0 +1,93 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+/**
+ * Prints commits as a log, one at a time as they are handed over, through a
+ * single buffered writer. Options limit what is printed:
+ *
+ *   -n COUNT       print at most COUNT commits
+ *   --skip COUNT   pass over the first COUNT commits
+ *   --since DATE   stop at the first commit made before DATE, given as
+ *                  yyyy/MM/dd or yyyy/MM/dd HH:mm:ss
+ *
+ * Commits are handed over newest first, and a commit is never older than
+ * its parent, so nothing after a commit made before DATE is printed.
+ */
+
+class LogPrinter {
+    private static final String[] DATE_FORMATS = {"yyyy/MM/dd HH:mm:ss", "yyyy/MM/dd"};
+
+    private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+    private int limit = Integer.MAX_VALUE;           // Commits left to print
+    private int skip;                                // Commits left to pass over
+    private long since = Long.MIN_VALUE;             // Time of the oldest commit to print, in millis
+
+    /**
+     * Returns a printer limited by given options, or null if they are not
+     * understood.
+     */
+    public static LogPrinter parse(List<String> options) {
+        LogPrinter printer = new LogPrinter();
+        try {
+            for (int i = 0; i < options.size(); i += 2) {
+                String option = options.get(i);
+                if (i + 1 >= options.size()) {
+                    return null;
+                }
+                String value = options.get(i + 1);
+                if (option.equals("-n")) {
+                    printer.limit = Integer.parseInt(value);
+                } else if (option.equals("--skip")) {
+                    printer.skip = Integer.parseInt(value);
+                } else if (option.equals("--since")) {
+                    printer.since = parseDate(value);
+                } else {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException | ParseException e) {
+            return null;
+        }
+        return printer.limit >= 0 && printer.skip >= 0 ? printer : null;
+    }
+
+    private static long parseDate(String value) throws ParseException {
+        for (String format : DATE_FORMATS) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+            try {
+                return dateFormat.parse(value).getTime();
+            } catch (ParseException e) {
+                // try the next format
+            }
+        }
+        throw new ParseException(value, 0);
+    }
+
+    /**
+     * Prints COMMIT unless it is skipped. Returns false once no further
+     * commit would be printed, so the caller can stop reading the history.
+     */
+    public boolean print(Commit commit) {
+        if (limit == 0 || commit.timestamp.getTimeInMillis() < since) {
+            return false;
+        }
+        if (skip > 0) {
+            skip--;
+            return true;
+        }
+        commit.print(out);
+        return --limit > 0;
+    }
+
+    /**
+     * Writes out what is still buffered.
+     */
+    public void flush() {
+        out.flush();
+    }
+}
@@ -84,4 +84,37 @@ class Messages {
 
     public static final String REMOTE_MISSING_BRANCH =
     "That remote does not have that branch.";
+
+    public static final String DAEMON_STARTED =
+    "Serving the repository on port ";
+
+    public static final String DAEMON_RUNNING =
+    "A daemon is already serving this repository.";
+
+    public static final String DAEMON_NOT_RUNNING =
+    "No daemon is serving this repository.";
+
+    public static final String DAEMON_STOPPED =
+    "Daemon stopped.";
+
+    public static final String DAEMON_LOST =
+    "Lost the connection to the daemon, the command may not have completed.";
+
+    public static final String NOT_SAVED =
+    "The changes could not be saved, the repository was left as it was.";
+
+    public static final String ADD_PROGRESS =
+    "Looked at %d files, stored %.1f MB (%.1f MB/s)";
+
+    public static final String ADD_SUMMARY =
+    "Staged %d of %d files, %.1f MB in %.1f s (%.1f MB/s)";
+
+    public static final String LOG_USAGE =
+    "Usage: log [-n <count>] [--skip <count>] [--since <yyyy/MM/dd[ HH:mm:ss]>]";
+
+    public static final String INVALID_CONFIG_VALUE =
+    "Invalid value %s for %s.";
+
+    public static final String HASH_FIXED =
+    "The hash algorithm cannot change once files are stored.";
 }
@@ -0,0 +1,578 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content addressed store for file snapshots. Every distinct file content is
+ * kept exactly once under OBJECT_DIR, keyed by its hash and fanned out into
+ * sub directories named after the first two characters of the hash. Objects
+ * that were moved into packs by repack are looked up there.
+ *
+ * A loose object starts with a four byte header: "GO", the format version and
+ * the id of the codec its content is compressed with.
+ *
+ * Checkouts in link mode need the plain content of a snapshot. Those are
+ * kept read-only under RAW_DIR and created from the object on first use.
+ * Their size and modification time are recorded, so that a copy written to
+ * through a link is noticed and thrown away.
+ *
+ * Objects stored while a transaction is open are appended to a single pack
+ * under INCOMING_DIR instead, so the transaction syncs one file however
+ * many objects it stores. Committing seals that pack into PACK_DIR.
+ */
+
+class ObjectStore {
+    private static final int MAGIC = 0x474F;         // "GO"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4;
+
+    private static final String INCOMING_DIR = Gitlet.OBJECT_DIR + "/incoming";
+
+    private static List<PackFile> packs;             // Packs in the store, loaded on first use
+    private static volatile PackFile incoming;       // Pack the open transaction appends to, or null
+    private static Map<String, long[]> rawStats;     // Size and mtime of each plain copy
+
+    /**
+     * Returns the path of the object with given hash within version control
+     * system folder.
+     */
+    public static String getObjectPath(String hash) {
+        return Gitlet.OBJECT_DIR + "/" + hash.substring(0, 2) + "/" + hash.substring(2);
+    }
+
+    /**
+     * Returns the path of the plain, read-only copy of the object with given hash.
+     */
+    public static String getRawPath(String hash) {
+        return Gitlet.RAW_DIR + "/" + hash.substring(0, 2) + "/" + hash.substring(2);
+    }
+
+    /**
+     * Returns the plain, read-only copy of the content with given hash,
+     * assembling it first if there is none yet. CHUNKS lists the objects the
+     * content was split into, or is null if it is stored whole.
+     */
+    public static synchronized Path materialize(String hash, List<String> chunks) throws IOException {
+        Path raw = Paths.get(getRawPath(hash));
+        if (!isRawIntact(hash)) {
+            Files.createDirectories(raw.getParent());
+            Path tmp = Paths.get(raw + ".tmp");
+            copyTo(hash, chunks, tmp);
+            tmp.toFile().setReadOnly();
+            Files.deleteIfExists(raw); // other links keep the altered content, not ours
+            Files.move(tmp, raw);
+            File f = raw.toFile();
+            rawStats.put(hash, new long[] {f.length(), f.lastModified()});
+            Util.serialize(rawStats, Gitlet.RAW_DIR + "/stats.ser");
+        }
+        return raw;
+    }
+
+    /**
+     * Returns true if the plain copy of the object with given hash exists and
+     * was not modified since it was created.
+     */
+    public static synchronized boolean isRawIntact(String hash) {
+        if (rawStats == null) {
+            rawStats = new HashMap<String, long[]>();
+            if (Util.fileExists(Gitlet.RAW_DIR + "/stats.ser")) {
+                @SuppressWarnings("unchecked")
+                Map<String, long[]> stored = (Map<String, long[]>) Util.deserialize(Gitlet.RAW_DIR + "/stats.ser");
+                rawStats = stored;
+            }
+        }
+        long[] stat = rawStats.get(hash);
+        File f = new File(getRawPath(hash));
+        return stat != null && f.exists() && f.length() == stat[0] && f.lastModified() == stat[1];
+    }
+
+    /**
+     * Returns true if an object with given hash is already stored, false otherwise.
+     */
+    public static boolean contains(String hash) {
+        return isLoose(hash) || findPack(hash) != null;
+    }
+
+    /**
+     * Returns true if the object with given hash is stored as its own file.
+     */
+    public static boolean isLoose(String hash) {
+        return new File(getObjectPath(hash)).exists();
+    }
+
+    /**
+     * Stores the content of given file under given hash, compressed with the
+     * configured codec. Nothing is written if the store already holds that content.
+     */
+    public static void put(String hash, String fileName) throws IOException {
+        put(hash, fileName, null);
+    }
+
+    /**
+     * Stores the content of given file, hashing it with MD while it is
+     * copied, and returns its hash. The file is read once, and nothing is
+     * kept if the store already holds that content.
+     */
+    public static String put(String fileName, MessageDigest md) throws IOException {
+        File incoming = new File(Gitlet.OBJECT_DIR, "incoming-" + Thread.currentThread().getId() + ".tmp");
+        Codec codec = Codec.configured();
+        boolean packed = Journal.isActive();
+        try {
+            try (FileOutputStream os = new FileOutputStream(incoming)) {
+                if (!packed) {
+                    os.write(new byte[] {(byte) (MAGIC >> 8), (byte) MAGIC, VERSION, (byte) codec.id});
+                }
+                if (codec == Codec.NONE) {
+                    FileIO.copyAndDigest(fileName, os, md);
+                } else {
+                    OutputStream cos = codec.compress(os, Codec.configuredLevel());
+                    FileIO.copyAndDigest(fileName, cos, md);
+                    cos.close();
+                }
+            }
+            String hash = Util.getHexFromBytes(md.digest());
+            if (packed && !contains(hash)) {
+                getIncoming().append(hash, codec, incoming);
+            } else if (!contains(hash)) {
+                File out = new File(getObjectPath(hash));
+                out.getParentFile().mkdirs();
+                publish(incoming.toPath(), out);
+            }
+            return hash;
+        } finally {
+            incoming.delete();
+        }
+    }
+
+    /**
+     * Stores DATA under given hash, unless the store already holds it.
+     */
+    public static void put(String hash, byte[] data) throws IOException {
+        put(hash, null, data);
+    }
+
+    /**
+     * Writes a new object from either a file or an array of bytes.
+     */
+    private static void put(String hash, String fileName, byte[] data) throws IOException {
+        if (contains(hash)) {
+            return;
+        }
+        Codec codec = Codec.configured();
+        if (Journal.isActive()) {
+            if (codec == Codec.NONE && fileName != null) {
+                getIncoming().append(hash, codec, new File(fileName));
+                return;
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try (InputStream is = fileName != null ? new FileInputStream(fileName) : new ByteArrayInputStream(data)) {
+                OutputStream cos = codec.compress(os, Codec.configuredLevel());
+                Util.copy(is, cos);
+                cos.close();
+            }
+            getIncoming().append(hash, codec, os.toByteArray());
+            return;
+        }
+        File out = new File(getObjectPath(hash));
+        Path tmp = newTemporary(out);
+        try (FileOutputStream os = new FileOutputStream(tmp.toFile())) {
+            os.write(new byte[] {(byte) (MAGIC >> 8), (byte) MAGIC, VERSION, (byte) codec.id});
+            if (codec == Codec.NONE && fileName != null) {
+                FileIO.transfer(fileName, 0, new File(fileName).length(), os);
+            } else {
+                try (InputStream is = fileName != null ? new FileInputStream(fileName) : new ByteArrayInputStream(data)) {
+                    OutputStream cos = codec.compress(os, Codec.configuredLevel());
+                    Util.copy(is, cos);
+                    cos.close();
+                }
+            }
+        }
+        publish(tmp, out);
+    }
+
+    /**
+     * Stores content that was already compressed with CODEC under given
+     * hash, unless the store already holds it.
+     */
+    public static void putEncoded(String hash, Codec codec, byte[] encoded) throws IOException {
+        if (contains(hash)) {
+            return;
+        }
+        if (Journal.isActive()) {
+            getIncoming().append(hash, codec, encoded);
+            return;
+        }
+        File out = new File(getObjectPath(hash));
+        Path tmp = newTemporary(out);
+        try (FileOutputStream os = new FileOutputStream(tmp.toFile())) {
+            os.write(new byte[] {(byte) (MAGIC >> 8), (byte) MAGIC, VERSION, (byte) codec.id});
+            os.write(encoded);
+        }
+        publish(tmp, out);
+    }
+
+    /**
+     * Returns the temporary file a new loose object is written to before
+     * it is moved in place. Threads may store the same content at once, so
+     * each has its own.
+     */
+    private static Path newTemporary(File object) {
+        if (!object.getParentFile().exists()) {
+            object.getParentFile().mkdirs();
+        }
+        return Paths.get(object.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    private static void publish(Path tmp, File object) throws IOException {
+        Files.move(tmp, object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Journal.sync(object.getPath());
+    }
+
+    /**
+     * Returns a stream over the content with given hash. CHUNKS lists the
+     * objects the content was split into, or is null if it is stored whole.
+     */
+    public static InputStream open(String hash, List<String> chunks) throws IOException {
+        if (chunks == null) {
+            return open(hash);
+        }
+        final Iterator<String> remaining = chunks.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            public boolean hasMoreElements() {
+                return remaining.hasNext();
+            }
+
+            public InputStream nextElement() {
+                try {
+                    return open(remaining.next());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a stream over the uncompressed content of the object with given hash.
+     */
+    public static InputStream open(String hash) throws IOException {
+        if (!isLoose(hash)) {
+            return new ByteArrayInputStream(read(hash));
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(getObjectPath(hash)), 1 << 16);
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            if (in.read(header) != HEADER_SIZE || ((header[0] & 0xFF) << 8 | (header[1] & 0xFF)) != MAGIC
+                    || header[2] != VERSION) {
+                throw new IOException("Corrupted object " + hash);
+            }
+            return Codec.fromId(header[3]).decompress(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the content with given hash to given location. CHUNKS lists the
+     * objects the content was split into, or is null if it is stored whole.
+     */
+    public static void copyTo(String hash, List<String> chunks, Path to) throws IOException {
+        if (chunks == null) {
+            copyTo(hash, to);
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(to.toFile())) {
+            for (String chunk : chunks) {
+                try (InputStream in = open(chunk)) {
+                    Util.copy(in, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decompresses the object with given hash out of the store to given location.
+     */
+    public static void copyTo(String hash, Path to) throws IOException {
+        if (isLoose(hash) && getCodec(hash) == Codec.NONE) {
+            String objectPath = getObjectPath(hash);
+            try (FileOutputStream out = new FileOutputStream(to.toFile())) {
+                FileIO.transfer(objectPath, HEADER_SIZE, new File(objectPath).length() - HEADER_SIZE, out);
+            }
+            return;
+        }
+        PackFile pack = isLoose(hash) ? null : findPack(hash);
+        long[] region = pack != null ? pack.locate(hash) : null;
+        if (region != null) {
+            try (FileOutputStream out = new FileOutputStream(to.toFile())) {
+                FileIO.transfer(pack.getPath(), region[0], region[1], out);
+            }
+            return;
+        }
+        try (InputStream in = open(hash); OutputStream out = new FileOutputStream(to.toFile())) {
+            Util.copy(in, out);
+        }
+    }
+
+    /**
+     * Returns the codec the loose object with given hash is stored with.
+     */
+    private static Codec getCodec(String hash) throws IOException {
+        try (InputStream in = new FileInputStream(getObjectPath(hash))) {
+            byte[] header = new byte[HEADER_SIZE];
+            if (in.read(header) != HEADER_SIZE) {
+                throw new IOException("Corrupted object " + hash);
+            }
+            return Codec.fromId(header[3]);
+        }
+    }
+
+    /**
+     * Returns the uncompressed content of the object with given hash.
+     */
+    public static byte[] read(String hash) throws IOException {
+        if (isLoose(hash)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = open(hash)) {
+                Util.copy(in, out);
+            }
+            return out.toByteArray();
+        }
+        PackFile pack = findPack(hash);
+        if (pack == null) {
+            throw new IOException("Missing object " + hash);
+        }
+        return pack.read(hash);
+    }
+
+    /**
+     * Returns the uncompressed content of the object with given hash. An
+     * object stored whole without compression is mapped rather than read,
+     * so only the parts that are looked at are loaded.
+     */
+    public static ByteBuffer map(String hash) throws IOException {
+        if (isLoose(hash)) {
+            try (RandomAccessFile file = new RandomAccessFile(getObjectPath(hash), "r")) {
+                ByteBuffer data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                if (data.limit() >= HEADER_SIZE && (data.getShort(0) & 0xFFFF) == MAGIC
+                        && data.get(2) == VERSION && data.get(3) == Codec.NONE.id) {
+                    data.position(HEADER_SIZE);
+                    return data.slice();
+                }
+            }
+        } else {
+            PackFile pack = findPack(hash);
+            long[] region = pack != null ? pack.locate(hash) : null;
+            if (region != null) {
+                try (RandomAccessFile file = new RandomAccessFile(pack.getPath(), "r")) {
+                    return file.getChannel().map(FileChannel.MapMode.READ_ONLY, region[0], region[1]);
+                }
+            }
+        }
+        return ByteBuffer.wrap(read(hash));
+    }
+
+    /**
+     * Removes the loose copy of the object with given hash, if any.
+     */
+    public static void removeLoose(String hash) {
+        File f = new File(getObjectPath(hash));
+        f.delete();
+        File parent = f.getParentFile();
+        String[] remaining = parent.list();
+        if (remaining != null && remaining.length == 0) {
+            parent.delete();
+        }
+    }
+
+    /**
+     * Returns the hashes of all loose objects.
+     */
+    public static List<String> listLoose() {
+        return listFanOut(Gitlet.OBJECT_DIR);
+    }
+
+    /**
+     * Returns the hashes of all objects that have a plain copy.
+     */
+    public static List<String> listRaw() {
+        return listFanOut(Gitlet.RAW_DIR);
+    }
+
+    /**
+     * Returns the hashes of the plain copies that symbolic links in the
+     * working folder point to. Removing one would leave its links dangling,
+     * while a hard link keeps the content on its own.
+     */
+    public static Set<String> listLinkedRaw() throws IOException {
+        final Path raw = Paths.get(Gitlet.RAW_DIR).toAbsolutePath().normalize();
+        final Path gitletDir = Paths.get(Gitlet.GITLET_DIR).toAbsolutePath().normalize();
+        final Set<String> linked = new HashSet<String>();
+        Files.walkFileTree(Paths.get("."), new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                boolean skip = dir.toAbsolutePath().normalize().equals(gitletDir);
+                return skip ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) {
+                    Path target = path.toAbsolutePath().getParent().resolve(Files.readSymbolicLink(path)).normalize();
+                    if (target.startsWith(raw) && target.getNameCount() == raw.getNameCount() + 2) {
+                        linked.add(target.getParent().getFileName().toString() + target.getFileName());
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return linked;
+    }
+
+    /**
+     * Returns the hashes of the files in the two character sub directories of DIR.
+     */
+    private static List<String> listFanOut(String dir) {
+        List<String> hashes = new ArrayList<String>();
+        File[] fanOut = new File(dir).listFiles();
+        if (fanOut == null) {
+            return hashes;
+        }
+        for (File sub : fanOut) {
+            String[] names = sub.getName().length() == 2 ? sub.list() : null;
+            if (names != null) {
+                for (String name : names) {
+                    if (!name.endsWith(".tmp")) {
+                        hashes.add(sub.getName() + name);
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the packs in the store.
+     */
+    public static synchronized List<PackFile> getPacks() {
+        if (packs == null) {
+            packs = PackFile.list();
+        }
+        return packs;
+    }
+
+    /**
+     * Forgets the loaded packs, so that they are listed again on next use.
+     */
+    public static synchronized void reloadPacks() {
+        packs = null;
+    }
+
+    /**
+     * Returns the pack the open transaction appends new objects to,
+     * starting it on first use.
+     */
+    private static synchronized PackFile getIncoming() throws IOException {
+        if (incoming == null) {
+            incoming = PackFile.create(INCOMING_DIR + "/pack-" + System.nanoTime());
+        }
+        return incoming;
+    }
+
+    /**
+     * Finishes the pack the open transaction appended to and moves it next
+     * to the other packs, index first. Returns the files that must be synced
+     * before the transaction commits, which are none if nothing was stored.
+     */
+    public static synchronized List<Path> seal() throws IOException {
+        List<Path> sealed = new ArrayList<Path>();
+        if (incoming == null) {
+            return sealed;
+        }
+        PackFile pack = incoming;
+        incoming = null;
+        pack.finish();
+        new File(Gitlet.PACK_DIR).mkdirs();
+        String from = pack.getPath().substring(0, pack.getPath().length() - ".pack".length());
+        long stamp = System.currentTimeMillis();
+        while (new File(Gitlet.PACK_DIR + "/pack-" + stamp + ".pack").exists()) {
+            stamp++;
+        }
+        String to = Gitlet.PACK_DIR + "/pack-" + stamp;
+        sealed.add(Files.move(Paths.get(from + ".idx"), Paths.get(to + ".idx")));
+        sealed.add(Files.move(Paths.get(from + ".pack"), Paths.get(to + ".pack")));
+        reloadPacks();
+        return sealed;
+    }
+
+    /**
+     * Throws away the pack the open transaction appended to, and any left
+     * behind by a transaction that did not finish.
+     */
+    public static synchronized void discard() {
+        if (incoming != null) {
+            incoming.delete();
+            incoming = null;
+        }
+        File[] leftover = new File(INCOMING_DIR).listFiles();
+        if (leftover != null) {
+            for (File f : leftover) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the pack holding the object with given hash, or null.
+     */
+    private static PackFile findPack(String hash) {
+        PackFile pending = incoming;
+        try {
+            if (pending != null && pending.contains(hash)) {
+                return pending;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (PackFile pack : getPacks()) {
+            try {
+                if (pack.contains(hash)) {
+                    return pack;
+                }
+            } catch (IOException e) { // an unreadable pack does not hide the others
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+}
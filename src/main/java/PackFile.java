@@ -0,0 +1,506 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pack holds many objects in a single file. Older versions of a path are
+ * stored as deltas against the next newer version, so small edits to large
+ * files only cost the size of the edit.
+ *
+ * The pack file starts with "GPCK", a version and the number of entries.
+ * Each entry is a type byte, the id of the codec its data is compressed
+ * with, the varint length of the compressed data, the digest of its base
+ * for deltas, and the data itself.
+ *
+ * The index file next to it is an open addressing hash table from digest
+ * to entry offset, so looking up an object reads a single slot in the
+ * common case.
+ *
+ * A pack can also be written one object at a time, as a transaction
+ * stores them. Until it is finished, its entries are looked up in memory
+ * and it has no index.
+ */
+
+class PackFile {
+    private static final int PACK_MAGIC = 0x4750434B;   // "GPCK"
+    private static final int INDEX_MAGIC = 0x47494458;  // "GIDX"
+    private static final int VERSION = 1;
+    private static final int PACK_VERSION = 2;
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    private static final int MAX_DIGEST = 32;
+    private static final int SLOT_SIZE = 1 + MAX_DIGEST + 8;
+    private static final String TMP = ".tmp";
+
+    private final String basePath;                   // Path of the pack without extension
+    private ByteBuffer index;                        // Mapped index file
+    private int slots;                               // Number of slots in the index
+    private FileChannel appending;                   // Open while objects are appended, null otherwise
+    private Map<String, Long> appended;              // Offset of each appended entry, until the index is written
+    private long length;                             // Bytes written while appending
+
+    /**
+     * Opens the pack stored at given path, without extension.
+     */
+    public PackFile(String basePath) {
+        this.basePath = basePath;
+    }
+
+    /**
+     * Starts an empty pack at given path, without extension, that objects
+     * are appended to until it is finished.
+     */
+    public static PackFile create(String basePath) throws IOException {
+        PackFile pack = new PackFile(basePath);
+        new File(basePath).getParentFile().mkdirs();
+        pack.appending = FileChannel.open(Paths.get(basePath + ".pack"), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        pack.appended = new ConcurrentHashMap<String, Long>();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(PACK_MAGIC).putInt(PACK_VERSION).putInt(0).flip();
+        pack.writeFully(header);
+        return pack;
+    }
+
+    /**
+     * Appends an object whose data is already compressed with CODEC,
+     * unless this pack has it.
+     */
+    public synchronized void append(String hash, Codec codec, byte[] data) throws IOException {
+        if (appended.containsKey(hash)) {
+            return;
+        }
+        long offset = length;
+        writeFully(ByteBuffer.wrap(entryHeader(codec, data.length)));
+        writeFully(ByteBuffer.wrap(data));
+        appended.put(hash, offset);
+    }
+
+    /**
+     * Appends an object whose data, compressed with CODEC, is the content
+     * of given file, unless this pack has it.
+     */
+    public synchronized void append(String hash, Codec codec, File data) throws IOException {
+        if (appended.containsKey(hash)) {
+            return;
+        }
+        long offset = length;
+        try (FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            writeFully(ByteBuffer.wrap(entryHeader(codec, size)));
+            for (long done = 0; done < size; ) {
+                done += appending.transferFrom(in, length + done, size - done);
+            }
+            length += size;
+        }
+        appended.put(hash, offset);
+    }
+
+    /**
+     * Records the number of entries of a pack started by create and writes
+     * its index. Nothing can be appended afterwards.
+     */
+    public synchronized void finish() throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(appended.size()).flip();
+        while (count.hasRemaining()) {
+            appending.write(count, 8 + count.position());
+        }
+        appending.close();
+        appending = null;
+        List<byte[]> digests = new ArrayList<byte[]>();
+        List<Long> offsets = new ArrayList<Long>();
+        for (Map.Entry<String, Long> entry : appended.entrySet()) {
+            digests.add(Util.getBytesFromHex(entry.getKey()));
+            offsets.add(entry.getValue());
+        }
+        writeIndex(basePath + ".idx", digests, offsets);
+        appended = null;
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            length += appending.write(data, length);
+        }
+    }
+
+    private static byte[] entryHeader(Codec codec, long length) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(FULL);
+        header.write(codec.id);
+        Delta.writeVarint(header, length);
+        return header.toByteArray();
+    }
+
+    /**
+     * Returns the path of the pack file itself.
+     */
+    public String getPath() {
+        return basePath + ".pack";
+    }
+
+    /**
+     * Returns all packs in version control system folder.
+     */
+    public static List<PackFile> list() {
+        List<PackFile> packs = new ArrayList<PackFile>();
+        File[] files = new File(Gitlet.PACK_DIR).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".pack")) {
+                    String name = f.getPath();
+                    packs.add(new PackFile(name.substring(0, name.length() - ".pack".length())));
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Returns true if this pack contains the object with given hash.
+     */
+    public boolean contains(String hash) throws IOException {
+        return find(hash) >= 0;
+    }
+
+    /**
+     * Returns the content of the object with given hash, resolving its delta
+     * chain if needed, or null if this pack does not contain it.
+     */
+    public byte[] read(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0) {
+            return null;
+        }
+        List<byte[]> deltas = new ArrayList<byte[]>();
+        try (RandomAccessFile pack = new RandomAccessFile(basePath + ".pack", "r")) {
+            pack.seek(4);
+            if (pack.readInt() != PACK_VERSION) {
+                throw new IOException("Unsupported pack " + basePath);
+            }
+            while (true) {
+                pack.seek(offset);
+                byte type = pack.readByte();
+                Codec codec = Codec.fromId(pack.readUnsignedByte());
+                int length = (int) readVarint(pack);
+                if (type == FULL) {
+                    byte[] content = readData(pack, codec, length);
+                    for (int i = deltas.size() - 1; i >= 0; i--) {
+                        content = Delta.apply(content, deltas.get(i));
+                    }
+                    return content;
+                }
+                byte[] base = new byte[pack.readUnsignedByte()];
+                pack.readFully(base);
+                deltas.add(readData(pack, codec, length));
+                offset = find(base);
+                if (offset < 0) {
+                    throw new IOException("Missing delta base in " + basePath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the offset and length of the data of the object with given
+     * hash if it is stored whole and uncompressed, so it can be read
+     * straight out of the pack file, or null otherwise.
+     */
+    public long[] locate(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0) {
+            return null;
+        }
+        try (RandomAccessFile pack = new RandomAccessFile(basePath + ".pack", "r")) {
+            pack.seek(offset);
+            byte type = pack.readByte();
+            int codec = pack.readUnsignedByte();
+            long length = readVarint(pack);
+            return type == FULL && codec == Codec.NONE.id ? new long[] {pack.getFilePointer(), length} : null;
+        }
+    }
+
+    /**
+     * Reads LENGTH bytes of entry data at the current position and decompresses them.
+     */
+    private static byte[] readData(RandomAccessFile pack, Codec codec, int length) throws IOException {
+        byte[] data = new byte[length];
+        pack.readFully(data);
+        if (codec == Codec.NONE) {
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(data))) {
+            Util.copy(in, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the hashes of all objects in this pack.
+     */
+    public List<String> hashes() throws IOException {
+        openIndex();
+        List<String> hashes = new ArrayList<String>();
+        for (int slot = 0; slot < slots; slot++) {
+            int position = 12 + slot * SLOT_SIZE;
+            int length = index.get(position);
+            if (length != 0) {
+                byte[] digest = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    digest[i] = index.get(position + 1 + i);
+                }
+                hashes.add(Util.getHexFromBytes(digest));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the total size of this pack and its index on disk.
+     */
+    public long size() {
+        return new File(basePath + ".pack").length() + new File(basePath + ".idx").length();
+    }
+
+    /**
+     * Removes this pack and its index from disk.
+     */
+    public void delete() {
+        index = null;
+        if (appending != null) {
+            try {
+                appending.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            appending = null;
+        }
+        new File(basePath + ".idx").delete();
+        new File(basePath + ".pack").delete();
+    }
+
+    /**
+     * Returns the offset of the entry with given hash, or -1 if absent.
+     */
+    private long find(String hash) throws IOException {
+        return find(Util.getBytesFromHex(hash));
+    }
+
+    private long find(byte[] digest) throws IOException {
+        Map<String, Long> pending = appended;
+        if (pending != null) {
+            Long offset = pending.get(Util.getHexFromBytes(digest));
+            return offset == null ? -1 : offset;
+        }
+        openIndex();
+        int mask = slots - 1;
+        for (int slot = slotOf(digest) & mask; ; slot = (slot + 1) & mask) {
+            int position = 12 + slot * SLOT_SIZE;
+            int length = index.get(position);
+            if (length == 0) {
+                return -1;
+            }
+            if (length == digest.length && digestAt(position + 1, digest)) {
+                return index.getLong(position + 1 + MAX_DIGEST);
+            }
+        }
+    }
+
+    private boolean digestAt(int position, byte[] digest) {
+        for (int i = 0; i < digest.length; i++) {
+            if (index.get(position + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps the index file into memory, once.
+     */
+    private void openIndex() throws IOException {
+        if (index != null) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(basePath + ".idx", "r")) {
+            index = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Unsupported pack index " + basePath);
+        }
+        slots = index.getInt(8);
+    }
+
+    private static int slotOf(byte[] digest) {
+        int h = 0;
+        for (int i = 0; i < 4 && i < digest.length; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+
+    /**
+     * Writes a new pack at given path holding every object in HISTORIES. Each
+     * history lists the versions of one path, newest first. The newest version
+     * is stored whole and each older one as a delta against its successor,
+     * until a chain reaches MAXDEPTH deltas. Entry data is compressed with the
+     * configured codec. Returns the hashes packed.
+     *
+     * Both files are written under temporary names and renamed into place,
+     * the index first, so a pack is never listed without its index.
+     */
+    public static Set<String> write(String basePath, List<List<String>> histories, int maxDepth)
+            throws IOException {
+        File packTmp = new File(basePath + ".pack" + TMP);
+        File indexTmp = new File(basePath + ".idx" + TMP);
+        boolean written = false;
+        try {
+            Set<String> packed = write(packTmp, indexTmp, histories, maxDepth);
+            Files.move(indexTmp.toPath(), Paths.get(basePath + ".idx"), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(packTmp.toPath(), Paths.get(basePath + ".pack"), StandardCopyOption.REPLACE_EXISTING);
+            written = true;
+            return packed;
+        } finally {
+            if (!written) {
+                packTmp.delete();
+                indexTmp.delete();
+            }
+        }
+    }
+
+    private static Set<String> write(File packFile, File indexFile, List<List<String>> histories, int maxDepth)
+            throws IOException {
+        Set<String> packed = new HashSet<String>();
+        Codec codec = Codec.configured();
+        int level = Codec.configuredLevel();
+        List<byte[]> digests = new ArrayList<byte[]>();
+        List<Long> offsets = new ArrayList<Long>();
+        packFile.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(packFile), 1 << 16))) {
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(PACK_VERSION);
+            out.writeInt(0);
+            long offset = 12;
+            for (List<String> history : histories) {
+                byte[] previous = null;
+                String previousHash = null;
+                int depth = 0;
+                for (String hash : history) {
+                    if (packed.contains(hash)) {
+                        previous = null;
+                        continue;
+                    }
+                    byte[] content = ObjectStore.read(hash);
+                    byte[] data = content;
+                    byte type = FULL;
+                    if (previous != null && depth < maxDepth) {
+                        byte[] delta = Delta.create(previous, content);
+                        if (delta.length < content.length * 3 / 4) {
+                            data = delta;
+                            type = DELTA;
+                        }
+                    }
+                    data = compress(data, codec, level);
+                    ByteArrayOutputStream header = new ByteArrayOutputStream();
+                    header.write(type);
+                    header.write(codec.id);
+                    Delta.writeVarint(header, data.length);
+                    if (type == DELTA) {
+                        byte[] base = Util.getBytesFromHex(previousHash);
+                        header.write(base.length);
+                        header.write(base, 0, base.length);
+                    }
+                    header.writeTo(out);
+                    out.write(data);
+
+                    digests.add(Util.getBytesFromHex(hash));
+                    offsets.add(offset);
+                    offset += header.size() + data.length;
+                    packed.add(hash);
+                    depth = type == DELTA ? depth + 1 : 0;
+                    previous = content;
+                    previousHash = hash;
+                }
+            }
+        }
+        try (RandomAccessFile pack = new RandomAccessFile(packFile, "rw")) {
+            pack.seek(8);
+            pack.writeInt(packed.size());
+        }
+        writeIndex(indexFile.getPath(), digests, offsets);
+        return packed;
+    }
+
+    private static byte[] compress(byte[] data, Codec codec, int level) throws IOException {
+        if (codec == Codec.NONE) {
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        try (OutputStream cos = codec.compress(out, level)) {
+            cos.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the hash table index for the entries of a pack.
+     */
+    private static void writeIndex(String fileName, List<byte[]> digests, List<Long> offsets)
+            throws IOException {
+        int slots = 16;
+        while (slots < digests.size() * 2) {
+            slots <<= 1;
+        }
+        ByteBuffer table = ByteBuffer.allocate(12 + slots * SLOT_SIZE);
+        table.putInt(INDEX_MAGIC).putInt(VERSION).putInt(slots);
+        for (int i = 0; i < digests.size(); i++) {
+            byte[] digest = digests.get(i);
+            int slot = slotOf(digest) & (slots - 1);
+            while (table.get(12 + slot * SLOT_SIZE) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            int position = 12 + slot * SLOT_SIZE;
+            table.put(position, (byte) digest.length);
+            for (int j = 0; j < digest.length; j++) {
+                table.put(position + 1 + j, digest[j]);
+            }
+            table.putLong(position + 1 + MAX_DIGEST, offsets.get(i));
+        }
+        try (FileOutputStream out = new FileOutputStream(fileName)) {
+            out.write(table.array());
+        }
+    }
+
+    private static long readVarint(RandomAccessFile in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares answering ancestry questions by following parent pointers with
+ * answering them from reachability bitmaps. Must be run from an empty
+ * directory, it writes a history of its own to a version control system
+ * folder and removes it afterwards. Most commits continue the one before,
+ * the others start a side branch from a recent commit. Half of the
+ * questions are about a commit that is an ancestor.
+ *
+ * Usage: java ReachabilityBenchmark [number of commits] [number of queries]
+ */
+
+public class ReachabilityBenchmark {
+    public static void main(String[] args) {
+        if (Util.fileExists(Gitlet.GITLET_DIR)) {
+            System.out.println(Messages.GITLET_EXIST);
+            return;
+        }
+        int numCommits = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        try {
+            Util.createDirectory(Gitlet.GITLET_DIR);
+            generate(numCommits);
+            Random random = new Random(7);
+            int[][] pairs = new int[numQueries][];
+            for (int i = 0; i < numQueries; i++) {
+                int id = numCommits / 2 + random.nextInt(numCommits - numCommits / 2);
+                int other = random.nextInt(id + 1);
+                if (i % 2 == 0) { // half of the questions about a real ancestor
+                    other = id;
+                    for (int steps = random.nextInt(numCommits / 2); steps > 0 && other > 0; steps--) {
+                        other = CommitLog.getParentID(other);
+                    }
+                }
+                pairs[i] = new int[] {other, id};
+            }
+            for (Commit commit : CommitLog.getAll()) {
+                commit.getParent(); // every commit in memory, so walks do not read the log
+            }
+
+            long start = System.nanoTime();
+            boolean[] walked = new boolean[numQueries];
+            for (int i = 0; i < numQueries; i++) {
+                walked[i] = walkIsAncestor(pairs[i][0], pairs[i][1]);
+            }
+            long walkNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                CommitGraph.isAncestor(pairs[i][0], pairs[i][1]);
+            }
+            long coldNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int ancestors = 0;
+            int wrong = 0;
+            for (int i = 0; i < numQueries; i++) {
+                boolean found = CommitGraph.isAncestor(pairs[i][0], pairs[i][1]);
+                ancestors += found ? 1 : 0;
+                wrong += found != walked[i] ? 1 : 0;
+            }
+            long bitmapNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int[] walkedMissing = new int[numQueries];
+            for (int i = 0; i < numQueries; i++) {
+                walkedMissing[i] = walkMissing(pairs[i][1], pairs[i][0]);
+            }
+            long walkMissingNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                int missing = CommitGraph.missing(pairs[i][1], pairs[i][0]).cardinality();
+                wrong += missing != walkedMissing[i] ? 1 : 0;
+            }
+            long bitmapMissingNanos = System.nanoTime() - start;
+
+            CommitGraph.flush();
+            System.out.println(numCommits + " commits, " + numQueries + " queries, "
+                + ancestors + " of them ancestors, " + wrong + " answers differ");
+            System.out.println(String.format("is ancestor      walk %10.1f us  bitmaps %8.1f us  (first time %8.1f us)",
+                micros(walkNanos, numQueries), micros(bitmapNanos, numQueries), micros(coldNanos, numQueries)));
+            System.out.println(String.format("in A, not in B   walk %10.1f us  bitmaps %8.1f us",
+                micros(walkMissingNanos, numQueries), micros(bitmapMissingNanos, numQueries)));
+            System.out.println("bitmaps file " + new File(CommitGraph.getBitmapPath()).length() + " bytes");
+        } finally {
+            Util.deleteRecursively(new File(Gitlet.GITLET_DIR));
+        }
+    }
+
+    /**
+     * Appends NUMCOMMITS commits to the log. One in ten starts a branch from
+     * one of the twenty commits before.
+     */
+    private static void generate(int numCommits) {
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        for (int id = 0; id < numCommits; id++) {
+            int parent = id - 1;
+            if (id > 1 && random.nextInt(10) == 0) {
+                parent = Math.max(0, id - 1 - random.nextInt(20));
+            }
+            CommitLog.append(new Commit(id, "commit " + id, parent, time + id, "master"));
+        }
+    }
+
+    /**
+     * Answers whether ANCESTOR is in the history of ID the way it was done
+     * before bitmaps, by following parents.
+     */
+    private static boolean walkIsAncestor(int ancestor, int id) {
+        Commit target = CommitLog.get(ancestor);
+        for (Commit p = CommitLog.get(id); p != null; p = p.getParent()) {
+            if (p == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the commits in the history of ID1 that are not in the history
+     * of ID2 by following parents.
+     */
+    private static int walkMissing(int id1, int id2) {
+        Set<Commit> excluded = new HashSet<Commit>();
+        for (Commit p = CommitLog.get(id2); p != null; p = p.getParent()) {
+            excluded.add(p);
+        }
+        int count = 0;
+        for (Commit p = CommitLog.get(id1); p != null; p = p.getParent()) {
+            count += excluded.contains(p) ? 0 : 1;
+        }
+        return count;
+    }
+
+    private static double micros(long nanos, int count) {
+        return nanos / 1000.0 / count;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Snapshots many files at once. Each file passes four stages, each run by
+ * its own threads: read, hash, compress and write. Reading and writing use
+ * core.ioDepth threads, the number of requests the disk is given at once,
+ * and hashing and compressing one thread per core.
+ *
+ * Every stage takes a bounded number of files, and file content waiting
+ * between stages is held within a fixed memory budget, so a slow stage
+ * makes the ones before it wait instead of filling the heap. A file whose
+ * hash is cached and whose content is stored already is never read. Files
+ * too large to hold in memory are snapshotted whole by the read stage.
+ *
+ * Objects written here are not referred to by any metadata until the
+ * caller records the snapshots after finish returns, so nothing becomes
+ * visible unless every file was stored.
+ */
+
+class SnapshotPipeline {
+    private static final int MEMORY_BUDGET = 64 << 20; // Bytes of file content held at once
+    public static final int DEFAULT_IO_DEPTH = 4;
+
+    private final Stage read;
+    private final Stage hash;
+    private final Stage compress;
+    private final Stage write;
+    private final Semaphore memory = new Semaphore(MEMORY_BUDGET);
+    private final List<FileInfo> files = new ArrayList<FileInfo>(); // Files submitted so far
+    private final AtomicLong stored = new AtomicLong(); // Bytes of content stored so far
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>(); // First error, if any
+    private final HashAlgorithm algorithm = HashAlgorithm.configured();
+    private final Codec codec = Codec.configured();
+    private final int level = Codec.configuredLevel();
+    private final int wholeLimit;                    // Size from which files are snapshotted whole
+    private int running;                             // Files submitted but not done
+
+    public SnapshotPipeline() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int ioDepth = Math.max(1, Config.getInt(Config.IO_DEPTH, DEFAULT_IO_DEPTH));
+        read = new Stage("read", ioDepth);
+        hash = new Stage("hash", cores);
+        compress = new Stage("compress", cores);
+        write = new Stage("write", ioDepth);
+        wholeLimit = (int) Math.min(Math.min(HashAlgorithm.TREE_THRESHOLD + 1, MEMORY_BUDGET),
+            Config.getInt(Config.CHUNK_THRESHOLD, FileInfo.DEFAULT_CHUNK_THRESHOLD));
+    }
+
+    /**
+     * Queues FILE to be snapshotted, waiting while the pipeline is full. Its
+     * hash and chunks are filled in by the time finish returns.
+     */
+    public void submit(FileInfo file) {
+        synchronized (this) {
+            files.add(file);
+            running++;
+        }
+        read.run(new Job(file), Job.READ);
+    }
+
+    /**
+     * Returns the number of bytes of content stored so far.
+     */
+    public long getStoredBytes() {
+        return stored.get();
+    }
+
+    /**
+     * Waits until every submitted file is stored and stops the threads.
+     * Throws the first error any file met, in which case the snapshots must
+     * not be used.
+     */
+    public void finish() throws IOException {
+        synchronized (this) {
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while storing files", e);
+                }
+            }
+        }
+        read.stop();
+        hash.stop();
+        compress.stop();
+        write.stop();
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("Failed to store files", e);
+        }
+        for (FileInfo file : files) {
+            if (file.md5 == null) {
+                throw new IOException("Failed to store " + file.path);
+            }
+        }
+    }
+
+    private synchronized void done() {
+        if (--running == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Threads of one stage, taking at most twice as many files as it has
+     * threads. Handing it more waits for a free place.
+     */
+    private class Stage {
+        private final ExecutorService threads;
+        private final Semaphore places;
+
+        Stage(final String name, int count) {
+            threads = Executors.newFixedThreadPool(count, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "snapshot-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            places = new Semaphore(2 * count);
+        }
+
+        void run(final Job job, final int step) {
+            places.acquireUninterruptibly();
+            threads.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (failure.get() == null) {
+                            job.run(step);
+                        } else {
+                            job.drop();
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        job.drop();
+                    } finally {
+                        places.release();
+                    }
+                }
+            });
+        }
+
+        void stop() {
+            threads.shutdown();
+        }
+    }
+
+    /**
+     * One file on its way through the stages.
+     */
+    private class Job {
+        static final int READ = 0;
+        static final int HASH = 1;
+        static final int COMPRESS = 2;
+        static final int WRITE = 3;
+
+        private final FileInfo file;
+        private BasicFileAttributes stat;            // Stat data taken before reading
+        private long readAt;                         // Milliseconds since the epoch when reading started
+        private byte[] content;                      // Content read, then compressed content
+        private int reserved;                        // Bytes of the memory budget held
+
+        Job(FileInfo file) {
+            this.file = file;
+        }
+
+        void run(int step) throws IOException {
+            switch (step) {
+                case READ:
+                    read();
+                    break;
+                case HASH:
+                    hash();
+                    break;
+                case COMPRESS:
+                    compress();
+                    break;
+                default:
+                    write();
+                    break;
+            }
+        }
+
+        /**
+         * Reads the file, unless its hash is cached and its content stored.
+         */
+        private void read() throws IOException {
+            stat = StatCache.stat(file.path);
+            if (stat == null) {
+                throw new IOException("Cannot read " + file.path);
+            }
+            if (stat.size() >= wholeLimit) {
+                file.snapshot(); // too large to hold in memory, errors fail the whole pipeline
+                stored.addAndGet(stat.size());
+                finish();
+                return;
+            }
+            String cached = StatCache.cached(file.path, stat);
+            if (cached != null && ObjectStore.contains(cached)) {
+                file.md5 = cached;
+                finish();
+                return;
+            }
+            reserved = (int) stat.size();
+            memory.acquireUninterruptibly(reserved);
+            readAt = System.currentTimeMillis();
+            content = Files.readAllBytes(Paths.get(file.path));
+            hash.run(this, HASH);
+        }
+
+        private void hash() {
+            String digest = Util.getHexFromBytes(algorithm.newDigest().digest(content));
+            if (content.length == stat.size()) { // otherwise changed while read, so not cached
+                StatCache.remember(file.path, stat, readAt, digest, Util.getHexFromBytes(new XXHash64().digest(content)));
+            }
+            file.md5 = digest;
+            if (ObjectStore.contains(digest)) {
+                finish();
+                return;
+            }
+            compress.run(this, COMPRESS);
+        }
+
+        private void compress() throws IOException {
+            int length = content.length;
+            if (codec != Codec.NONE) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+                OutputStream out = codec.compress(bytes, level);
+                out.write(content);
+                out.close();
+                content = bytes.toByteArray();
+            }
+            stored.addAndGet(length);
+            write.run(this, WRITE);
+        }
+
+        private void write() throws IOException {
+            ObjectStore.putEncoded(file.md5, codec, content);
+            finish();
+        }
+
+        /**
+         * Ends this job after a failure.
+         */
+        void drop() {
+            finish();
+        }
+
+        private void finish() {
+            content = null;
+            if (reserved > 0) {
+                memory.release(reserved);
+                reserved = 0;
+            }
+            done();
+        }
+    }
+}
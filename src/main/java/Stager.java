@@ -0,0 +1,237 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the snapshots for one add command. The paths given to add may name
+ * files, directories, whose files are added recursively, or glob patterns
+ * such as "src/*.java" or "**.txt". Directories are walked on the common
+ * fork join pool, one task per directory, so idle threads steal whole
+ * subtrees of a large walk. The files found are hashed and stored by a
+ * SnapshotPipeline.
+ *
+ * Messages and progress are printed by the calling thread only, which keeps
+ * them on the console of the right client when running in the daemon.
+ */
+
+class Stager {
+    private static final long REPORT_INTERVAL = 1000;   // Milliseconds between progress lines
+    private static final int REPORT_THRESHOLD = 1000;   // Files from which a summary is printed
+
+    private final Commit head;                       // Commit the files are compared with
+    private final SnapshotPipeline pipeline = new SnapshotPipeline();
+    private final Map<String, FileInfo> found = new ConcurrentHashMap<String, FileInfo>(); // Path to new snapshot
+    private final AtomicInteger files = new AtomicInteger(); // Files looked at so far
+
+    public Stager(Commit head) {
+        this.head = head;
+    }
+
+    /**
+     * Snapshots the changed files matched by PATHS and returns them, sorted
+     * by path. Prints a message for each path that matches no file, and for
+     * each file named directly that did not change. Returns no files at all
+     * if a directory could not be read.
+     */
+    public Map<String, FileInfo> stage(List<String> paths) {
+        head.getFiles(); // loaded here, not by each worker
+        final List<Target> targets = new ArrayList<Target>();
+        for (String path : paths) {
+            targets.add(new Target(path));
+        }
+        ForkJoinTask<Void> all = ForkJoinPool.commonPool().submit(new RecursiveAction() {
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (Target target : targets) {
+                    if (target.task != null) {
+                        tasks.add(target.task);
+                    }
+                }
+                try {
+                    invokeAll(tasks);
+                } finally {
+                    try {
+                        pipeline.finish(); // also stops its threads when the walk failed
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        });
+        long start = System.currentTimeMillis();
+        boolean reported = false;
+        while (true) {
+            try {
+                all.get(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+                break;
+            } catch (TimeoutException e) {
+                long bytes = pipeline.getStoredBytes();
+                System.err.println(String.format(Messages.ADD_PROGRESS, files.get(), megabytes(bytes), rate(bytes, start)));
+                reported = true;
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                return new TreeMap<String, FileInfo>();
+            }
+        }
+        Map<String, FileInfo> staged = new TreeMap<String, FileInfo>();
+        for (FileInfo snapshot : found.values()) {
+            FileInfo previous = head.getFile(snapshot.path);
+            if (previous == null || !previous.md5.equals(snapshot.md5)) {
+                staged.put(snapshot.path, snapshot);
+            }
+        }
+        for (Target target : targets) {
+            if (target.matched.get() == 0) {
+                System.out.println(Messages.NO_FILE);
+            } else if (target.file != null && !staged.containsKey(target.file)) {
+                System.out.println(Messages.FILE_UNCHANGED);
+            }
+        }
+        if (reported || files.get() >= REPORT_THRESHOLD) {
+            long bytes = pipeline.getStoredBytes();
+            System.out.println(String.format(Messages.ADD_SUMMARY, staged.size(), files.get(),
+                megabytes(bytes), (System.currentTimeMillis() - start) / 1000.0, rate(bytes, start)));
+        }
+        return staged;
+    }
+
+    /**
+     * Hands given file to the pipeline, unless it is still linked to its
+     * snapshot in the head commit and so cannot have changed.
+     */
+    private void stageFile(String fileName) {
+        files.incrementAndGet();
+        FileInfo previous = head.getFile(fileName);
+        if (previous != null && previous.isLinked()) {
+            return;
+        }
+        FileInfo snapshot = new FileInfo(fileName, -1);
+        if (found.putIfAbsent(fileName, snapshot) == null) { // paths given twice are stored once
+            pipeline.submit(snapshot);
+        }
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+    private static double rate(long bytes, long start) {
+        return megabytes(bytes) * 1000.0 / Math.max(1, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the name a file is tracked under: its path relative to the
+     * working folder, with '/' between names.
+     */
+    private static String trackedName(Path path) {
+        return path.normalize().toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * One path given to add, with the task that stages its files.
+     */
+    private class Target {
+        final AtomicInteger matched = new AtomicInteger(); // Files found for this path
+        RecursiveAction task;                        // Null if the path matches nothing
+        String file;                                 // The file named directly, or null for a directory or pattern
+
+        Target(final String path) {
+            if (new File(path).isDirectory()) {
+                task = new Walk(Paths.get(path).normalize(), null, Integer.MAX_VALUE, this);
+            } else if (Util.fileExists(path)) {
+                matched.set(1);
+                file = trackedName(Paths.get(path)); // the name a walk would find it under
+                task = new RecursiveAction() {
+                    protected void compute() {
+                        stageFile(file);
+                    }
+                };
+            } else if (isGlob(path)) { // only once no file has this name
+                Path pattern = Paths.get(path).normalize();
+                Path base = pattern.getRoot() != null ? pattern.getRoot() : Paths.get("");
+                int depth = 0;
+                boolean recursive = false;
+                for (Path name : pattern) {
+                    if (depth == 0 && !isGlob(name.toString())) {
+                        base = base.resolve(name);
+                    } else {
+                        depth++;
+                        recursive |= name.toString().contains("**");
+                    }
+                }
+                if (Files.isDirectory(base.toString().isEmpty() ? Paths.get(".") : base)) {
+                    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                    task = new Walk(base, matcher, recursive ? Integer.MAX_VALUE : depth, this);
+                }
+            }
+        }
+
+        private boolean isGlob(String path) {
+            return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
+        }
+    }
+
+    /**
+     * Stages the files of one directory and forks a walk for each of its
+     * subdirectories, up to DEPTH levels below. The version control system
+     * folder and links to directories are skipped.
+     */
+    private class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final PathMatcher matcher;           // Files to stage, or null for all
+        private final int depth;                     // Levels of the walk left, this one included
+        private final Target target;
+
+        Walk(Path dir, PathMatcher matcher, int depth, Target target) {
+            this.dir = dir;
+            this.matcher = matcher;
+            this.depth = depth;
+            this.target = target;
+        }
+
+        protected void compute() {
+            List<Walk> subdirs = new ArrayList<Walk>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toString().isEmpty() ? Paths.get(".") : dir)) {
+                for (Path entry : entries) {
+                    Path path = dir.resolve(entry.getFileName());
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        if (depth > 1 && !isGitletDir(path)) {
+                            subdirs.add(new Walk(path, matcher, depth - 1, target));
+                        }
+                    } else if (Files.isRegularFile(path) && (matcher == null || matcher.matches(path))) {
+                        target.matched.incrementAndGet();
+                        stageFile(trackedName(path));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subdirs);
+        }
+
+        private boolean isGitletDir(Path path) {
+            return path.toAbsolutePath().normalize().equals(Paths.get(Gitlet.GITLET_DIR).toAbsolutePath().normalize());
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the hash of each working file together with its size,
+ * modification time and inode, so a file whose stat data did not change is
+ * not read again. Kept in the index file in version control system folder.
+ *
+ * A file changed within the same timestamp tick as it was hashed would keep
+ * its stat data, so, as in git, such racy entries are not trusted: a cached
+ * hash is only used if the file had already been modified RACY_WINDOW
+ * before it was hashed. Racy files are hashed again until they settle.
+ *
+ * Each entry also keeps an XXH64 hash of the same content. When the stat
+ * data of a file changed, this much cheaper hash tells whether the content
+ * did too: if it matches, the cached key is still good, and if it does
+ * not, the file differs from every snapshot with the cached key.
+ *
+ * Layout: "GSTC", version, hash algorithm, number of entries, then per
+ * entry: path, size, modification time in nanoseconds, inode, time of
+ * hashing in milliseconds, hash, and XXH64 hash, empty if unknown.
+ */
+
+class StatCache {
+    private static final int MAGIC = 0x47535443;     // "GSTC"
+    private static final int VERSION = 2;
+    private static final long RACY_WINDOW = 2000;    // Milliseconds, covers the coarsest common timestamps
+
+    private static Map<String, Entry> entries;       // Path to cached stat data, loaded on first use
+    private static String algorithm;                 // Hash algorithm the cached hashes were made with
+    private static boolean dirty;                    // True if entries changed since loaded
+
+    public static String getPath() {
+        return Gitlet.GITLET_DIR + "/index";
+    }
+
+    /**
+     * Stat data and hash of one file.
+     */
+    private static class Entry {
+        long size;
+        long mtime;                                  // Nanoseconds since the epoch
+        String inode;                                // File key of the platform, empty if it has none
+        long hashedAt;                               // Milliseconds since the epoch
+        String hash;
+        String quick;                                // XXH64 hash of the content, empty if unknown
+    }
+
+    /**
+     * Returns the hash of given file, from the cache if the file has not
+     * changed since it was hashed, otherwise computed and cached. While the
+     * daemon watches the working folder, a file without events since it
+     * was hashed is not even looked at.
+     */
+    public static String hash(String fileName) {
+        String watched = Watcher.hash(fileName);
+        if (watched != null) {
+            return watched;
+        }
+        long version = Watcher.version(fileName);
+        BasicFileAttributes stat = stat(fileName);
+        if (stat == null) {
+            return Util.hashFile(fileName);
+        }
+        String hash = cached(fileName, stat);
+        if (hash == null) {
+            long hashedAt = System.currentTimeMillis();
+            String quick = quickHash(fileName);
+            Entry cached = get(key(fileName));
+            if (quick != null && cached != null && quick.equals(cached.quick)) {
+                hash = cached.hash; // only the stat data changed
+            } else {
+                hash = Util.hashFile(fileName);
+                if (!unchanged(fileName, stat)) {
+                    quick = null; // changed between the two reads, so they may not agree
+                }
+            }
+            if (hash != null) {
+                remember(fileName, stat, hashedAt, hash, quick);
+            }
+        }
+        Watcher.remember(fileName, version, hash);
+        return hash;
+    }
+
+    /**
+     * Returns true if given file holds the content with key HASH. When the
+     * stat data changed, only the XXH64 hash is computed if it already tells
+     * the answer.
+     */
+    public static boolean hasHash(String fileName, String hash) {
+        String watched = Watcher.hash(fileName);
+        if (watched != null) {
+            return watched.equals(hash);
+        }
+        BasicFileAttributes stat = stat(fileName);
+        if (stat == null) {
+            return false;
+        }
+        String cachedHash = cached(fileName, stat);
+        if (cachedHash != null) {
+            return cachedHash.equals(hash);
+        }
+        Entry cached = get(key(fileName));
+        if (cached != null && !cached.quick.isEmpty()) {
+            long hashedAt = System.currentTimeMillis();
+            String quick = quickHash(fileName);
+            if (quick != null && quick.equals(cached.quick)) { // only the stat data changed
+                remember(fileName, stat, hashedAt, cached.hash, quick);
+                return cached.hash.equals(hash);
+            } else if (quick != null && cached.hash.equals(hash)) {
+                return false; // differs from the content that has this key
+            }
+        }
+        return hash.equals(hash(fileName));
+    }
+
+    /**
+     * Returns the XXH64 hash of given file, or null if it cannot be read.
+     */
+    private static String quickHash(String fileName) {
+        try {
+            return Util.getHexFromBytes(HashAlgorithm.XXH64.hashFile(fileName));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stat data of given file, or null if it cannot be read.
+     */
+    public static BasicFileAttributes stat(String fileName) {
+        try {
+            return Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if given file still has the stat data STAT.
+     */
+    public static boolean unchanged(String fileName, BasicFileAttributes stat) {
+        BasicFileAttributes now = stat(fileName);
+        return now != null && matches(stat, now);
+    }
+
+    /**
+     * Returns the cached hash of given file if it can be trusted for the
+     * stat data STAT, otherwise null.
+     */
+    public static String cached(String fileName, BasicFileAttributes stat) {
+        Entry cached = get(key(fileName));
+        if (cached != null && matches(cached, stat) && cached.mtime / 1000000 + RACY_WINDOW <= cached.hashedAt) {
+            return cached.hash;
+        }
+        return null;
+    }
+
+    /**
+     * Caches HASH and the XXH64 hash QUICK, which may be null, for given
+     * file, which had the stat data STAT when hashing started at HASHEDAT.
+     */
+    public static void remember(String fileName, BasicFileAttributes stat, long hashedAt, String hash, String quick) {
+        Entry entry = new Entry();
+        entry.size = stat.size();
+        entry.mtime = stat.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        entry.inode = inode(stat);
+        entry.hashedAt = hashedAt;
+        entry.hash = hash;
+        entry.quick = quick != null ? quick : "";
+        put(key(fileName), entry);
+    }
+
+    /**
+     * Writes the index to disk if it changed.
+     */
+    public static synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 96 * entries.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(algorithm);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeUTF(entry.inode);
+                out.writeLong(entry.hashedAt);
+                out.writeUTF(entry.hash);
+                out.writeUTF(entry.quick);
+            }
+            out.flush();
+            Journal.write(getPath(), bytes.toByteArray());
+            dirty = false;
+        } catch (IOException e) {
+            Journal.fail(e);
+        }
+    }
+
+    /**
+     * Forgets the entries in memory, so they are read from disk on next use.
+     */
+    public static synchronized void reload() {
+        entries = null;
+        dirty = false;
+    }
+
+    private static String key(String fileName) {
+        return Paths.get(fileName).normalize().toString();
+    }
+
+    private static boolean matches(Entry entry, BasicFileAttributes stat) {
+        return entry.size == stat.size()
+            && entry.mtime == stat.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+            && entry.inode.equals(inode(stat));
+    }
+
+    private static boolean matches(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime())
+            && inode(a).equals(inode(b));
+    }
+
+    private static String inode(BasicFileAttributes stat) {
+        Object key = stat.fileKey();
+        return key == null ? "" : key.toString();
+    }
+
+    private static synchronized Entry get(String key) {
+        load();
+        return entries.get(key);
+    }
+
+    private static synchronized void put(String key, Entry entry) {
+        load();
+        entries.put(key, entry);
+        dirty = true;
+    }
+
+    /**
+     * Reads the index, dropping it if it was made with another hash algorithm.
+     */
+    private static void load() {
+        String configured = HashAlgorithm.configured().name();
+        if (entries != null && algorithm.equals(configured)) {
+            return;
+        }
+        dirty = entries != null;
+        entries = new HashMap<String, Entry>();
+        algorithm = configured;
+        if (!Util.fileExists(getPath())) {
+            return;
+        }
+        try {
+            byte[] data = Journal.read(getPath());
+            if (data == null) {
+                data = Files.readAllBytes(Paths.get(getPath()));
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(algorithm)) {
+                dirty = true; // rewritten in the current format
+                return;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String path = in.readUTF();
+                Entry entry = new Entry();
+                entry.size = in.readLong();
+                entry.mtime = in.readLong();
+                entry.inode = in.readUTF();
+                entry.hashedAt = in.readLong();
+                entry.hash = in.readUTF();
+                entry.quick = in.readUTF();
+                entries.put(path, entry);
+            }
+        } catch (IOException e) {
+            entries.clear(); // a damaged cache only costs hashing again
+        }
+    }
+}
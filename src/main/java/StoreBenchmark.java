@@ -0,0 +1,103 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how fast snapshots are written to and restored from the object
+ * store with each storage setting. Must be run from an empty directory, it
+ * creates its own version control system folder and removes it afterwards.
+ *
+ * Usage: java StoreBenchmark [number of files] [file size in KB]
+ */
+
+public class StoreBenchmark {
+    private static final String WORK_DIR = "bench-files";
+    private static final String[] WORDS = {
+        "commit", "branch", "merge", "snapshot", "restore", "file", "status", "gitlet", "head", "log"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (Util.fileExists(Gitlet.GITLET_DIR)) {
+            System.out.println(Messages.GITLET_EXIST);
+            return;
+        }
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 256) * 1024;
+        List<String> files = generate(numFiles, fileSize);
+        long totalBytes = (long) numFiles * fileSize;
+        try {
+            run(FileIO.STREAM, "none", 0, files, totalBytes);
+            run(FileIO.CHANNEL, "none", 0, files, totalBytes);
+            run(FileIO.CHANNEL, "deflate", 1, files, totalBytes);
+            run(FileIO.CHANNEL, "deflate", 6, files, totalBytes);
+            run(FileIO.CHANNEL, "deflate", 9, files, totalBytes);
+        } finally {
+            Util.deleteRecursively(new File(Gitlet.GITLET_DIR));
+            Util.deleteRecursively(new File(WORK_DIR));
+        }
+    }
+
+    /**
+     * Snapshots and restores all FILES with given I/O and compression settings
+     * and prints the throughput of both directions and the size on disk.
+     */
+    private static void run(String io, String codec, int level, List<String> files, long totalBytes)
+            throws IOException {
+        Util.deleteRecursively(new File(Gitlet.GITLET_DIR));
+        new File(Gitlet.OBJECT_DIR).mkdirs();
+        Config.set(Config.IO, io);
+        Config.set(Config.COMPRESSION, codec);
+        Config.set(Config.COMPRESSION_LEVEL, String.valueOf(level));
+
+        List<String> hashes = new ArrayList<String>();
+        long start = System.nanoTime();
+        for (String file : files) {
+            String hash = Util.hashFile(file);
+            ObjectStore.put(hash, file);
+            hashes.add(hash);
+        }
+        long commitNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < files.size(); i++) {
+            ObjectStore.copyTo(hashes.get(i), Paths.get(files.get(i)));
+        }
+        long checkoutNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%-7s %-8s level %d  commit %8.1f MB/s  checkout %8.1f MB/s  stored %6.1f%%",
+                io, codec, level, throughput(totalBytes, commitNanos), throughput(totalBytes, checkoutNanos),
+                100.0 * Util.sizeOf(new File(Gitlet.OBJECT_DIR)) / totalBytes));
+    }
+
+    /**
+     * Writes NUMFILES text files of FILESIZE bytes and returns their names.
+     */
+    private static List<String> generate(int numFiles, int fileSize) throws IOException {
+        Random random = new Random(42);
+        List<String> files = new ArrayList<String>();
+        new File(WORK_DIR).mkdirs();
+        for (int i = 0; i < numFiles; i++) {
+            String name = WORK_DIR + "/file" + i + ".txt";
+            StringBuilder text = new StringBuilder(fileSize);
+            while (text.length() < fileSize) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000));
+                text.append(random.nextInt(8) == 0 ? '\n' : ' ');
+            }
+            text.setLength(fileSize);
+            try (OutputStream out = new FileOutputStream(name)) {
+                out.write(text.toString().getBytes("UTF-8"));
+            }
+            files.add(name);
+        }
+        return files;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * One directory of a commit, stored in the object store under the hash of
+ * its encoding. Subdirectories are referred to by the hash of their own
+ * tree, so a directory that did not change is stored once for all commits
+ * and two commits are compared by skipping every subtree with equal hashes.
+ *
+ * Layout: "GTRE", version, number of entries, the offset of each entry,
+ * then the entries sorted by name. Each entry is: type ('F' or 'D'), name
+ * length, name, and then the tree digest of a directory, or the latest
+ * commit id, digest and number of chunks of a file, followed by the chunk
+ * digests. Digests are raw bytes after a length byte, numbers are varints.
+ *
+ * Trees are stored uncompressed, so a single file is found with a binary
+ * search over the offsets of each directory on its path, directly in the
+ * mapped objects.
+ */
+
+class Tree {
+    private static final int MAGIC = 0x47545245;     // "GTRE"
+    private static final int VERSION = 2;
+    private static final byte FILE = 'F';
+    private static final byte DIRECTORY = 'D';
+
+    private final String prefix;                     // Path of this directory, ending with '/' unless root
+    private final TreeMap<String, Object> entries;   // FileInfo for files, tree hash for directories
+
+    private Tree(String prefix) {
+        this.prefix = prefix;
+        entries = new TreeMap<String, Object>();
+    }
+
+    /**
+     * Stores the trees of given files and returns the hash of the root tree.
+     */
+    public static String write(Map<String, FileInfo> files) throws IOException {
+        return update(null, files);
+    }
+
+    /**
+     * Stores the trees of the files under ROOT with CHANGES applied, and
+     * returns the hash of the new root tree. Files removed map to null.
+     * Only directories on the way to a change are read and written again.
+     */
+    public static String update(String root, Map<String, FileInfo> changes) throws IOException {
+        String hash = update(root, "", changes);
+        return hash != null ? hash : new Tree("").store();
+    }
+
+    /**
+     * Returns the file with given path under ROOT, or null if there is none.
+     */
+    public static FileInfo get(String root, String path) throws IOException {
+        ByteBuffer tree = open(root);
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length; i++) {
+            ByteBuffer entry = find(tree, names[i]);
+            if (entry == null) {
+                return null;
+            }
+            byte type = entry.get();
+            readName(entry);
+            if (i == names.length - 1) {
+                return type == FILE ? readFile(entry, path) : null;
+            }
+            if (type != DIRECTORY) {
+                return null;
+            }
+            tree = open(readDigest(entry));
+        }
+        return null;
+    }
+
+    /**
+     * Returns every file under ROOT.
+     */
+    public static FileTrie readAll(String root) throws IOException {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        collectFiles(root, "", files);
+        FileTrie trie = FileTrie.EMPTY;
+        for (FileInfo file : files) {
+            trie = trie.plus(file.path, file);
+        }
+        return trie;
+    }
+
+    /**
+     * Returns the files that differ between the trees NOW and OLD. Files
+     * only under OLD map to null. Subtrees with equal hashes are skipped.
+     */
+    public static Map<String, FileInfo> diff(String old, String now) throws IOException {
+        Map<String, FileInfo> changes = new HashMap<String, FileInfo>();
+        diff(old, now, "", changes);
+        return changes;
+    }
+
+    /**
+     * Adds the hashes of ROOT and all trees below it to TREES. Subtrees
+     * already in TREES are not read again.
+     */
+    public static void collect(String root, Set<String> trees) throws IOException {
+        if (!trees.add(root)) {
+            return;
+        }
+        for (Object entry : read(root, "").entries.values()) {
+            if (entry instanceof String) {
+                collect((String) entry, trees);
+            }
+        }
+    }
+
+    private static String update(String hash, String prefix, Map<String, FileInfo> changes) throws IOException {
+        Tree tree = hash == null ? new Tree(prefix) : read(hash, prefix);
+        Map<String, Map<String, FileInfo>> nested = new HashMap<String, Map<String, FileInfo>>();
+        for (Map.Entry<String, FileInfo> change : changes.entrySet()) {
+            String name = change.getKey().substring(prefix.length());
+            int slash = name.indexOf('/');
+            if (slash >= 0) {
+                String dir = name.substring(0, slash);
+                Map<String, FileInfo> below = nested.get(dir);
+                if (below == null) {
+                    below = new HashMap<String, FileInfo>();
+                    nested.put(dir, below);
+                }
+                below.put(change.getKey(), change.getValue());
+            } else if (change.getValue() == null) {
+                tree.entries.remove(name);
+            } else {
+                tree.entries.put(name, change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, FileInfo>> dir : nested.entrySet()) {
+            Object entry = tree.entries.get(dir.getKey());
+            String sub = update(entry instanceof String ? (String) entry : null,
+                prefix + dir.getKey() + "/", dir.getValue());
+            if (sub == null) {
+                tree.entries.remove(dir.getKey());
+            } else {
+                tree.entries.put(dir.getKey(), sub);
+            }
+        }
+        if (tree.entries.isEmpty()) { // empty directories are not tracked
+            return null;
+        }
+        return tree.store();
+    }
+
+    private static void collectFiles(String hash, String prefix, List<FileInfo> files) throws IOException {
+        for (Map.Entry<String, Object> entry : read(hash, prefix).entries.entrySet()) {
+            if (entry.getValue() instanceof FileInfo) {
+                files.add((FileInfo) entry.getValue());
+            } else {
+                collectFiles((String) entry.getValue(), prefix + entry.getKey() + "/", files);
+            }
+        }
+    }
+
+    private static void diff(String old, String now, String prefix, Map<String, FileInfo> changes) throws IOException {
+        if (old != null && old.equals(now)) {
+            return;
+        }
+        Map<String, Object> before = old == null ? new TreeMap<String, Object>() : read(old, prefix).entries;
+        Map<String, Object> after = now == null ? new TreeMap<String, Object>() : read(now, prefix).entries;
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            Object previous = before.remove(entry.getKey());
+            Object current = entry.getValue();
+            if (current instanceof FileInfo) {
+                FileInfo file = (FileInfo) current;
+                if (!(previous instanceof FileInfo) || !file.isSameSnapshot((FileInfo) previous)) {
+                    changes.put(file.path, file);
+                }
+                if (previous instanceof String) { // a directory replaced by a file
+                    diff((String) previous, null, prefix + entry.getKey() + "/", changes);
+                }
+            } else {
+                if (previous instanceof FileInfo) { // a file replaced by a directory
+                    changes.put(((FileInfo) previous).path, null);
+                }
+                diff(previous instanceof String ? (String) previous : null, (String) current,
+                    prefix + entry.getKey() + "/", changes);
+            }
+        }
+        for (Map.Entry<String, Object> entry : before.entrySet()) { // no longer present
+            if (entry.getValue() instanceof FileInfo) {
+                changes.put(((FileInfo) entry.getValue()).path, null);
+            } else {
+                diff((String) entry.getValue(), null, prefix + entry.getKey() + "/", changes);
+            }
+        }
+    }
+
+    /**
+     * Reads the tree with given hash, which describes the directory PREFIX.
+     */
+    private static Tree read(String hash, String prefix) throws IOException {
+        ByteBuffer data = open(hash);
+        int count = data.getInt(8);
+        data.position(12 + 4 * count);
+        Tree tree = new Tree(prefix);
+        for (int i = 0; i < count; i++) {
+            byte type = data.get();
+            String name = readName(data);
+            if (type == DIRECTORY) {
+                tree.entries.put(name, readDigest(data));
+            } else {
+                tree.entries.put(name, readFile(data, prefix + name));
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the content of the tree with given hash.
+     */
+    private static ByteBuffer open(String hash) throws IOException {
+        ByteBuffer data = ObjectStore.map(hash);
+        if (data.limit() < 12 || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Unsupported tree " + hash);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the content of TREE positioned at the entry with given name,
+     * or null if there is none.
+     */
+    private static ByteBuffer find(ByteBuffer tree, String name) {
+        int low = 0;
+        int high = tree.getInt(8) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            ByteBuffer entry = tree.duplicate();
+            entry.position(tree.getInt(12 + 4 * mid) + 1);
+            int order = readName(entry).compareTo(name);
+            if (order == 0) {
+                entry.position(tree.getInt(12 + 4 * mid));
+                return entry;
+            } else if (order < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes this tree and stores it, unless the store already has it.
+     * Returns its hash.
+     */
+    private String store() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(48 * entries.size());
+        int[] offsets = new int[entries.size()];
+        int start = 12 + 4 * offsets.length;
+        int i = 0;
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            offsets[i++] = start + body.size();
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (entry.getValue() instanceof String) {
+                body.write(DIRECTORY);
+                Delta.writeVarint(body, name.length);
+                body.write(name, 0, name.length);
+                writeDigest(body, (String) entry.getValue());
+                continue;
+            }
+            FileInfo file = (FileInfo) entry.getValue();
+            body.write(FILE);
+            Delta.writeVarint(body, name.length);
+            body.write(name, 0, name.length);
+            Delta.writeVarint(body, file.latestCommit);
+            writeDigest(body, file.md5);
+            Delta.writeVarint(body, file.chunks == null ? 0 : file.chunks.size());
+            if (file.chunks != null) {
+                for (String chunk : file.chunks) {
+                    writeDigest(body, chunk);
+                }
+            }
+        }
+        ByteBuffer data = ByteBuffer.allocate(start + body.size());
+        data.putInt(MAGIC).putInt(VERSION).putInt(offsets.length);
+        for (int offset : offsets) {
+            data.putInt(offset);
+        }
+        data.put(body.toByteArray());
+        String hash = Util.getHexFromBytes(HashAlgorithm.configured().newDigest().digest(data.array()));
+        ObjectStore.putEncoded(hash, Codec.NONE, data.array());
+        return hash;
+    }
+
+    private static void writeDigest(ByteArrayOutputStream out, String hex) {
+        byte[] digest = Util.getBytesFromHex(hex);
+        out.write(digest.length);
+        out.write(digest, 0, digest.length);
+    }
+
+    private static String readName(ByteBuffer data) {
+        byte[] name = new byte[(int) Delta.readVarint(data)];
+        data.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static String readDigest(ByteBuffer data) {
+        byte[] digest = new byte[data.get() & 0xFF];
+        data.get(digest);
+        return Util.getHexFromBytes(digest);
+    }
+
+    /**
+     * Reads the file entry at the position of DATA, past its name.
+     */
+    private static FileInfo readFile(ByteBuffer data, String path) {
+        FileInfo file = new FileInfo(path, (int) Delta.readVarint(data));
+        file.md5 = readDigest(data);
+        long chunks = Delta.readVarint(data);
+        if (chunks > 0) {
+            file.chunks = new ArrayList<String>((int) chunks);
+            for (long j = 0; j < chunks; j++) {
+                file.chunks.add(readDigest(data));
+            }
+        }
+        return file;
+    }
+}
@@ -1,16 +1,16 @@
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
-import java.security.DigestInputStream;
 
 /**
  * Created by prakhash on 22/03/16.
@@ -18,37 +18,56 @@ import java.security.DigestInputStream;
 
 class Util {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Given an array of raw bytes, returns string representation in HEX.
      */
     public static String getHexFromBytes(byte[] raw) {
-        String result = "";
-        for (byte byteValue : raw) {
-            result += String.format("%02x", byteValue);
+        char[] hex = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(raw[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[raw[i] & 0xF];
         }
-        return result;
+        return new String(hex);
     }
 
     /**
-     * Returns true if file exists in file system, false otherwise.
+     * Appends the HEX representation of given raw bytes to OUT without
+     * allocating intermediate objects.
+     */
+    public static void appendHex(StringBuilder out, byte[] raw) {
+        for (byte b : raw) {
+            out.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+    }
+
+    /**
+     * Given a string representation in HEX, returns the array of raw bytes.
+     */
+    public static byte[] getBytesFromHex(String hex) {
+        byte[] raw = new byte[hex.length() / 2];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (Character.digit(hex.charAt(2 * i), 16) << 4 | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return raw;
+    }
+
+    /**
+     * Returns true if file exists in file system, or will once the open
+     * transaction commits, false otherwise.
      */
     public static boolean fileExists(String fileName) {
-        return new File(fileName).exists();
+        return Journal.isPending(fileName) || new File(fileName).exists();
     }
 
     /**
-     * Computes the MD5 hash(as byte array) of a file given the filename.
+     * Computes the hash of a file given the filename, with the algorithm
+     * selected in the repository settings, and returns it in HEX.
      */
-    public static byte[] computeFileMD5(String fileName) {
+    public static String hashFile(String fileName) {
         try {
-            InputStream is = Files.newInputStream(Paths.get(fileName));
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            DigestInputStream dis = new DigestInputStream(is, md);
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = dis.read(buffer)) > 0) {}
-            is.close();
-            return md.digest();
+            return getHexFromBytes(HashAlgorithm.configured().hashFile(fileName));
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -56,40 +75,76 @@ class Util {
     }
 
     /**
-     * Creates a new file with the given fileName and gives it the text
-     * fileText.
+     * Copies everything from IN to OUT. Neither stream is closed.
+     */
+    public static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Creates a directory with the given name unless it exists. Returns
+     * false if it existed already.
      */
-    public static void createDirectory(String directoryName) {
+    public static boolean createDirectory(String directoryName) {
         File f = new File(directoryName);
-        if (!f.exists()) {
-            f.mkdir();
-        } else if (directoryName == Gitlet.GITLET_DIR) {
-            System.out.println(Messages.GITLET_EXIST);
-            System.exit(0);
+        return !f.exists() && f.mkdir();
+    }
+
+    /**
+     * Returns the total size in bytes of given file, or of everything below it
+     * if it is a directory.
+     */
+    public static long sizeOf(File f) {
+        if (f.isFile()) {
+            return f.length();
         }
+        long size = 0;
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
     }
 
     /**
-     * Serialize the object and store in fileName indicated.
+     * Deletes given file, or given directory and everything below it.
      */
-    public static void serialize(Object obj, String fileName) {
-        try {
-            FileOutputStream fileOut = new FileOutputStream(fileName);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(obj);
-            out.close();
-            fileOut.close();
-        }catch(IOException e) {
-          e.printStackTrace();
+    public static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
         }
+        f.delete();
+    }
+
+    /**
+     * Serialize the object and store in fileName indicated. The file is
+     * replaced through the journal, so it is never left half written.
+     */
+    public static void serialize(Object obj, String fileName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        Journal.write(fileName, bytes.toByteArray());
     }
 
     /**
      * Deserialize the file given the filename and returns the object.
+     * Content written by the open transaction is seen before it is committed.
      */
     public static Object deserialize(String fileName) {
         try {
-            FileInputStream fileIn = new FileInputStream(fileName);
+            byte[] pending = Journal.read(fileName);
+            InputStream fileIn = pending != null ? new ByteArrayInputStream(pending) : new FileInputStream(fileName);
             ObjectInputStream in = new ObjectInputStream(fileIn);
             Object obj = in.readObject();
             in.close();
@@ -0,0 +1,343 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows changes to the working folder while the daemon runs, so status
+ * and the check for modified files only look at paths that changed. It
+ * keeps the list of working files, and gives every path a version that
+ * grows with each event about it. A hash remembered for a path stays good
+ * while the version of the path does not change.
+ *
+ * Events arrive some time after the change. Before each command, a cookie
+ * file is created in version control system folder, and the command only
+ * trusts the watcher once the event for the cookie arrived, since the
+ * events before it have then been seen too. If the events overflow or the
+ * cookie does not come, the command falls back to reading the disk, and
+ * the watcher lists the working folder again.
+ *
+ * Files that are symbolic links, as checked out with checkout.mode set to
+ * symlink, are changed through the link in the raw copies of the object
+ * store, which the watcher does not see. No hash is answered for them, so
+ * callers check the link and its snapshot themselves.
+ */
+
+class Watcher {
+    private static final long SYNC_TIMEOUT = 1000;   // Milliseconds to wait for a cookie
+    private static final String COOKIE = "watch-cookie-";
+
+    private static volatile Watcher running;         // Watcher of the daemon, or null
+
+    private final WatchService service;
+    private final Path root = Paths.get("");
+    private final Path gitletDir = Paths.get(Gitlet.GITLET_DIR).normalize();
+    private final Map<WatchKey, Path> dirs = new ConcurrentHashMap<WatchKey, Path>(); // Watched directories
+    private final Set<String> files = ConcurrentHashMap.newKeySet(); // Working files
+    private final Set<String> links = ConcurrentHashMap.newKeySet(); // Working files that are symbolic links
+    private final Map<String, Long> versions = new ConcurrentHashMap<String, Long>(); // Path to its last event
+    private final Map<String, Known> known = new ConcurrentHashMap<String, Known>(); // Path to its remembered hash
+    private final AtomicLong events = new AtomicLong(); // Events seen so far, used as versions
+    private final Set<String> cookies = new HashSet<String>(); // Cookies whose event arrived
+    private volatile long resetAt;                   // Version every path has at least, raised on overflow
+    private volatile boolean ready;                  // True once the working files are listed
+    private volatile boolean trusted;                // True if the last sync saw every earlier event
+    private int nextCookie;
+
+    /**
+     * Hash of a file, and the version of its path when hashing started.
+     */
+    private static class Known {
+        final String hash;
+        final long version;
+
+        Known(String hash, long version) {
+            this.hash = hash;
+            this.version = version;
+        }
+    }
+
+    private Watcher() throws IOException {
+        service = root.toAbsolutePath().getFileSystem().newWatchService();
+    }
+
+    /**
+     * Starts watching the working folder in the background.
+     */
+    public static void start() {
+        try {
+            final Watcher watcher = new Watcher();
+            watcher.gitletDir.toAbsolutePath().register(watcher.service, StandardWatchEventKinds.ENTRY_CREATE);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    watcher.list();
+                    watcher.follow();
+                }
+            }, "watcher");
+            thread.setDaemon(true);
+            thread.start();
+            running = watcher;
+        } catch (IOException e) {
+            e.printStackTrace(); // status keeps reading the disk
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    public static void stop() {
+        Watcher watcher = running;
+        running = null;
+        if (watcher != null) {
+            try {
+                watcher.service.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Waits until every change made so far has been seen, so the watcher
+     * can be trusted by the command about to run. Returns false if it
+     * cannot be, in which case the command reads the disk.
+     */
+    public static boolean sync() {
+        Watcher watcher = running;
+        if (watcher == null) {
+            return false;
+        }
+        watcher.trusted = watcher.ready && watcher.awaitCookie();
+        return watcher.trusted;
+    }
+
+    /**
+     * Returns the working files, relative to the working folder with '/'
+     * between names, or null if the watcher cannot tell.
+     */
+    public static Set<String> getFiles() {
+        Watcher watcher = running;
+        return watcher != null && watcher.trusted && watcher.ready ? watcher.files : null;
+    }
+
+    /**
+     * Returns the hash of given file if it did not change since it was
+     * remembered, otherwise null.
+     */
+    public static String hash(String fileName) {
+        Watcher watcher = running;
+        if (watcher == null || !watcher.trusted || !watcher.ready) {
+            return null;
+        }
+        String key = key(fileName);
+        if (watcher.links.contains(key)) {
+            return null; // written through the link, out of sight
+        }
+        Known file = watcher.known.get(key);
+        return file != null && file.version == watcher.versionOf(key) ? file.hash : null;
+    }
+
+    /**
+     * Returns the current version of given path, to be passed to remember
+     * once the file is hashed.
+     */
+    public static long version(String fileName) {
+        Watcher watcher = running;
+        return watcher == null ? -1 : watcher.versionOf(key(fileName));
+    }
+
+    /**
+     * Remembers the hash of given file, which was hashed starting at
+     * VERSION. Nothing is remembered if the file changed meanwhile.
+     */
+    public static void remember(String fileName, long version, String hash) {
+        Watcher watcher = running;
+        if (watcher == null || version < 0 || hash == null) {
+            return;
+        }
+        String key = key(fileName);
+        if (watcher.versionOf(key) == version) {
+            watcher.known.put(key, new Known(hash, version));
+        }
+    }
+
+    private static String key(String fileName) {
+        return Paths.get(fileName).normalize().toString().replace(File.separatorChar, '/');
+    }
+
+    private long versionOf(String key) {
+        Long version = versions.get(key);
+        return version == null ? resetAt : Math.max(version, resetAt);
+    }
+
+    private void changed(String key) {
+        versions.put(key, events.incrementAndGet());
+    }
+
+    /**
+     * Lists the working files and watches every directory, forgetting
+     * what was known before.
+     */
+    private void list() {
+        ready = false;
+        resetAt = events.incrementAndGet();
+        known.clear();
+        files.clear();
+        links.clear();
+        try {
+            register(root);
+            ready = true;
+        } catch (IOException e) {
+            e.printStackTrace(); // stays unready, so commands read the disk
+        }
+    }
+
+    /**
+     * Watches DIR and every directory below it, and adds their files.
+     */
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir.toString().isEmpty() ? Paths.get(".") : dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                Path relative = path.normalize();
+                if (relative.equals(gitletDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = path.toAbsolutePath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                dirs.put(key, relative);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() || attrs.isSymbolicLink() && Files.isRegularFile(path)) {
+                    String key = key(path.toString());
+                    files.add(key);
+                    if (attrs.isSymbolicLink()) {
+                        links.add(key);
+                    }
+                    changed(key);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE; // removed while listing, its event follows
+            }
+        });
+    }
+
+    /**
+     * Applies events until the watcher is stopped.
+     */
+    private void follow() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = key.watchable().equals(gitletDir.toAbsolutePath()) ? gitletDir : dirs.get(key);
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (dir == gitletDir) {
+                    cookieArrived(event.context().toString());
+                } else if (dir != null) {
+                    apply(event.kind(), dir.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                dirs.remove(key);
+            }
+            if (overflow) {
+                list();
+            }
+        }
+    }
+
+    private void apply(WatchEvent.Kind<?> kind, Path path) {
+        String key = key(path.toString());
+        changed(key);
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            files.remove(key);
+            links.remove(key);
+            Iterator<String> below = files.iterator();
+            while (below.hasNext()) { // a directory went away with its files
+                String file = below.next();
+                if (file.startsWith(key + "/")) {
+                    below.remove();
+                    links.remove(file);
+                    changed(file);
+                }
+            }
+        } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                try {
+                    register(path);
+                } catch (IOException e) {
+                    list(); // cannot tell what is below, so start over
+                }
+            }
+        } else if (Files.isRegularFile(path)) {
+            files.add(key);
+            if (Files.isSymbolicLink(path)) {
+                links.add(key);
+            } else {
+                links.remove(key);
+            }
+        }
+    }
+
+    private boolean awaitCookie() {
+        String name;
+        synchronized (cookies) {
+            name = COOKIE + nextCookie++;
+        }
+        File cookie = new File(gitletDir.toFile(), name);
+        try {
+            cookie.createNewFile();
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+            synchronized (cookies) {
+                while (!cookies.remove(name)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    cookies.wait(left);
+                }
+            }
+            return true;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        } finally {
+            cookie.delete();
+        }
+    }
+
+    private void cookieArrived(String name) {
+        if (name.startsWith(COOKIE)) {
+            synchronized (cookies) {
+                cookies.add(name);
+                cookies.notifyAll();
+            }
+        }
+    }
+}
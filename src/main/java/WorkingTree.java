@@ -0,0 +1,146 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compares the working folder with the head commit and the staged files
+ * of a branch. The folder is walked on the common fork join pool, one task
+ * per directory, and tracked files are compared by their hash from the stat
+ * cache, so files that were not touched since they were last hashed are
+ * not read. The version control system folder is skipped. While the daemon
+ * watches the working folder, its list of files is used instead of a walk.
+ */
+
+class WorkingTree {
+    public static final String MODIFIED = "modified";
+    public static final String DELETED = "deleted";
+
+    private final Commit head;
+    private final Branch branch;
+    private final Path gitletDir = Paths.get(Gitlet.GITLET_DIR).toAbsolutePath().normalize();
+    private final Map<String, String> modified = new ConcurrentHashMap<String, String>(); // Path to MODIFIED or DELETED
+    private final ConcurrentLinkedQueue<String> untracked = new ConcurrentLinkedQueue<String>();
+    private final Set<String> seen = ConcurrentHashMap.newKeySet(); // Tracked files found while walking
+
+    public WorkingTree(Branch branch) {
+        this.branch = branch;
+        this.head = branch.head;
+    }
+
+    /**
+     * Result of one scan. Paths are relative to the working folder, with
+     * '/' between names, and sorted.
+     */
+    public static class Changes {
+        public final Map<String, String> modified = new TreeMap<String, String>(); // Path to MODIFIED or DELETED
+        public final Set<String> untracked = new TreeSet<String>();
+    }
+
+    /**
+     * Walks the working folder and returns the tracked files that were
+     * modified or deleted since they were committed or staged, and the
+     * files that are not tracked at all.
+     */
+    public Changes scan() {
+        head.getFiles(); // loaded here, not by each worker
+        branch.getAddFiles();
+        Set<String> watched = Watcher.getFiles();
+        if (watched != null) {
+            for (String fileName : watched) {
+                compare(fileName);
+            }
+        } else {
+            ForkJoinPool.commonPool().invoke(new Walk(Paths.get("")));
+        }
+        for (String fileName : head.getFiles().keySet()) {
+            checkDeleted(fileName);
+        }
+        for (String fileName : branch.getAddFiles()) {
+            checkDeleted(fileName);
+        }
+        Changes changes = new Changes();
+        changes.modified.putAll(modified);
+        changes.untracked.addAll(untracked);
+        return changes;
+    }
+
+    private void checkDeleted(String fileName) {
+        if (!seen.contains(fileName) && !branch.isFileMarkedRemoved(fileName) && !new File(fileName).exists()) {
+            modified.put(fileName, DELETED);
+        }
+    }
+
+    /**
+     * Compares one working file with what is tracked for it.
+     */
+    private void compare(String fileName) {
+        if (branch.isFileMarkedRemoved(fileName)) {
+            untracked.add(fileName); // still there, but leaves with the next commit
+            return;
+        }
+        FileInfo expected = branch.getStagedFile(fileName);
+        if (expected == null && !branch.isFileMarkedAdded(fileName)) {
+            expected = head.getFile(fileName);
+            if (expected == null) {
+                untracked.add(fileName);
+                return;
+            }
+            if (Watcher.hash(fileName) == null && expected.isLinked()) {
+                seen.add(fileName);
+                return;
+            }
+        }
+        seen.add(fileName);
+        if (expected != null && !StatCache.hasHash(fileName, expected.md5)) {
+            modified.put(fileName, MODIFIED);
+        }
+    }
+
+    /**
+     * Scans one directory, forking a task for each subdirectory. Links to
+     * directories are not followed.
+     */
+    private class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        Walk(Path dir) {
+            this.dir = dir;
+        }
+
+        protected void compute() {
+            List<Walk> subdirs = new ArrayList<Walk>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toString().isEmpty() ? Paths.get(".") : dir)) {
+                for (Path entry : entries) {
+                    Path path = dir.resolve(entry.getFileName());
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!path.toAbsolutePath().normalize().equals(gitletDir)) {
+                            subdirs.add(new Walk(path));
+                        }
+                    } else if (Files.isRegularFile(path)) {
+                        compare(path.toString().replace(File.separatorChar, '/'));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subdirs);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.security.MessageDigest;
+
+/**
+ * The 64 bit xxHash algorithm as a MessageDigest. It is not cryptographic,
+ * but many times faster than MD5, which makes it a good fit for detecting
+ * changed files in trusted working trees.
+ */
+
+class XXHash64 extends MessageDigest {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+    private final byte[] stripe = new byte[32];      // Bytes not yet consumed by a full stripe
+    private int stripeLength;
+
+    public XXHash64() {
+        super("XXH64");
+        engineReset();
+    }
+
+    protected void engineReset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        totalLength = 0;
+        stripeLength = 0;
+    }
+
+    protected int engineGetDigestLength() {
+        return 8;
+    }
+
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[] {input}, 0, 1);
+    }
+
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        totalLength += length;
+        int end = offset + length;
+        if (stripeLength > 0) {
+            int n = Math.min(32 - stripeLength, length);
+            System.arraycopy(input, offset, stripe, stripeLength, n);
+            stripeLength += n;
+            offset += n;
+            if (stripeLength < 32) {
+                return;
+            }
+            consume(stripe, 0);
+            stripeLength = 0;
+        }
+        while (offset + 32 <= end) {
+            consume(input, offset);
+            offset += 32;
+        }
+        stripeLength = end - offset;
+        System.arraycopy(input, offset, stripe, 0, stripeLength);
+    }
+
+    protected byte[] engineDigest() {
+        long h;
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = PRIME5;
+        }
+        h += totalLength;
+
+        int offset = 0;
+        while (offset + 8 <= stripeLength) {
+            h ^= round(0, getLong(stripe, offset));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            offset += 8;
+        }
+        if (offset + 4 <= stripeLength) {
+            h ^= (getInt(stripe, offset) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        while (offset < stripeLength) {
+            h ^= (stripe[offset] & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            offset++;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+
+        byte[] digest = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            digest[i] = (byte) h;
+            h >>>= 8;
+        }
+        engineReset();
+        return digest;
+    }
+
+    private void consume(byte[] data, int offset) {
+        v1 = round(v1, getLong(data, offset));
+        v2 = round(v2, getLong(data, offset + 8));
+        v3 = round(v3, getLong(data, offset + 16));
+        v4 = round(v4, getLong(data, offset + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+            | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,122 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks that commit bitmaps keep their ids when containers change between
+ * arrays and bitsets at 4096 ids, and when written and read back in each of
+ * the three container encodings.
+ */
+
+public class CommitBitmapTest {
+    private static final int ARRAY_LIMIT = 4096;
+
+    @Test
+    public void arrayAtLimitRoundTrips() throws IOException {
+        CommitBitmap bitmap = everyOther(0, ARRAY_LIMIT); // neither runs nor a bitset are smaller
+        assertEquals(ARRAY_LIMIT, bitmap.cardinality());
+        assertArrayEquals(bitmap.toArray(), roundTrip(bitmap).toArray());
+    }
+
+    @Test
+    public void bitsetAboveLimitRoundTrips() throws IOException {
+        CommitBitmap bitmap = everyOther(0, ARRAY_LIMIT + 1);
+        assertEquals(ARRAY_LIMIT + 1, bitmap.cardinality());
+        assertTrue(bitmap.contains(2 * ARRAY_LIMIT));
+        assertFalse(bitmap.contains(2 * ARRAY_LIMIT + 1));
+        assertArrayEquals(bitmap.toArray(), roundTrip(bitmap).toArray());
+    }
+
+    @Test
+    public void runsRoundTripAcrossBlocks() throws IOException {
+        CommitBitmap bitmap = new CommitBitmap();
+        for (int id = 60000; id < 140000; id++) {
+            bitmap.add(id);
+        }
+        CommitBitmap read = roundTrip(bitmap);
+        assertEquals(80000, read.cardinality());
+        assertFalse(read.contains(59999));
+        assertTrue(read.contains(65535));
+        assertTrue(read.contains(65536));
+        assertTrue(read.contains(139999));
+        assertFalse(read.contains(140000));
+    }
+
+    @Test
+    public void orOfArraysBecomesBitset() throws IOException {
+        CommitBitmap evens = everyOther(0, ARRAY_LIMIT);
+        CommitBitmap odds = everyOther(1, 2);
+        CommitBitmap union = evens.or(odds);
+        assertEquals(ARRAY_LIMIT + 2, union.cardinality());
+        assertTrue(union.contains(1));
+        assertTrue(union.contains(3));
+        assertTrue(union.contains(2 * (ARRAY_LIMIT - 1)));
+        assertArrayEquals(union.toArray(), roundTrip(union).toArray());
+        assertEquals(ARRAY_LIMIT, evens.cardinality()); // operands are left alone
+        assertEquals(2, odds.cardinality());
+    }
+
+    @Test
+    public void orKeepsBlocksOfBothSides() {
+        CommitBitmap low = everyOther(0, 10);
+        CommitBitmap high = everyOther(1 << 17, 10);
+        CommitBitmap union = high.or(low);
+        assertEquals(20, union.cardinality());
+        int[] ids = union.toArray();
+        assertEquals(0, ids[0]);
+        assertEquals(1 << 17, ids[10]);
+    }
+
+    @Test
+    public void andNotOfBitsetShrinksToArray() throws IOException {
+        CommitBitmap all = everyOther(0, ARRAY_LIMIT + 100);
+        CommitBitmap removed = everyOther(0, 200);
+        CommitBitmap rest = all.andNot(removed);
+        assertEquals(ARRAY_LIMIT - 100, rest.cardinality());
+        assertFalse(rest.contains(0));
+        assertFalse(rest.contains(398));
+        assertTrue(rest.contains(400));
+        assertArrayEquals(rest.toArray(), roundTrip(rest).toArray());
+    }
+
+    @Test
+    public void andNotDropsEmptyBlocks() throws IOException {
+        CommitBitmap bitmap = everyOther(0, ARRAY_LIMIT + 1);
+        bitmap.add(1 << 16);
+        CommitBitmap rest = bitmap.andNot(everyOther(0, ARRAY_LIMIT + 1));
+        assertArrayEquals(new int[] {1 << 16}, rest.toArray());
+        assertArrayEquals(new int[] {1 << 16}, roundTrip(rest).toArray());
+        assertEquals(0, rest.andNot(rest).cardinality());
+        assertEquals(0, roundTrip(new CommitBitmap()).cardinality());
+    }
+
+    /**
+     * Returns a bitmap of COUNT ids starting at FIRST, two apart.
+     */
+    private static CommitBitmap everyOther(int first, int count) {
+        CommitBitmap bitmap = new CommitBitmap();
+        for (int i = 0; i < count; i++) {
+            bitmap.add(first + 2 * i);
+        }
+        return bitmap;
+    }
+
+    private static CommitBitmap roundTrip(CommitBitmap bitmap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            bitmap.write(out);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return CommitBitmap.read(in);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks merge bases on histories written to a version control system
+ * folder of their own, which is removed afterwards. Skipped if the working
+ * folder already holds one.
+ */
+
+public class CommitGraphTest {
+    private boolean created;                         // True once this test made the folder
+
+    @Before
+    public void setUp() {
+        assumeFalse(Util.fileExists(Gitlet.GITLET_DIR));
+        created = Util.createDirectory(Gitlet.GITLET_DIR);
+        CommitLog.reset();
+        CommitGraph.reload();
+    }
+
+    @After
+    public void tearDown() {
+        if (created) {
+            Util.deleteRecursively(new File(Gitlet.GITLET_DIR));
+        }
+        CommitLog.reset();
+        CommitGraph.reload();
+    }
+
+    /**
+     * 0 - 1 - 2 - 3 - 6
+     *      \
+     *       4 - 5
+     */
+    @Test
+    public void mergeBaseOfBranches() {
+        append(0, -1);
+        append(1, 0);
+        append(2, 1);
+        append(3, 2);
+        append(4, 1);
+        append(5, 4);
+        append(6, 3);
+        assertEquals(1, CommitGraph.mergeBase(3, 5));
+        assertEquals(1, CommitGraph.mergeBase(5, 3));
+        assertEquals(1, CommitGraph.mergeBase(6, 5));
+        assertEquals(1, CommitGraph.mergeBase(1, 5));
+    }
+
+    @Test
+    public void mergeBaseOfAncestor() {
+        append(0, -1);
+        append(1, 0);
+        append(2, 1);
+        assertEquals(1, CommitGraph.mergeBase(1, 2));
+        assertEquals(1, CommitGraph.mergeBase(2, 1));
+        assertEquals(2, CommitGraph.mergeBase(2, 2));
+        assertEquals(0, CommitGraph.mergeBase(0, 2));
+    }
+
+    @Test
+    public void mergeBaseOfUnrelatedHistories() {
+        append(0, -1);
+        append(1, 0);
+        append(2, -1);
+        append(3, 2);
+        assertEquals(-1, CommitGraph.mergeBase(1, 3));
+    }
+
+    /**
+     * A short branch taken off a long history, so the side that is ahead by
+     * generation is walked down to the other.
+     */
+    @Test
+    public void mergeBaseOfUnevenBranches() {
+        append(0, -1);
+        for (int id = 1; id < 1000; id++) {
+            append(id, id - 1);
+        }
+        append(1000, 500);
+        append(1001, 1000);
+        assertEquals(500, CommitGraph.mergeBase(999, 1001));
+        assertEquals(500, CommitGraph.mergeBase(1001, 999));
+    }
+
+    private static void append(int id, int parent) {
+        CommitLog.append(new Commit(id, "commit " + id, parent, 1000L * id, "master"));
+    }
+}
@@ -0,0 +1,197 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that metadata written in a transaction reaches its targets all at
+ * once or not at all, also when the process died halfway. A crash is
+ * reproduced by leaving on disk what a commit had written when it stopped.
+ * Runs in a version control system folder of its own, which is removed
+ * afterwards, and is skipped if the working folder already holds one.
+ */
+
+public class JournalTest {
+    private static final int MAGIC = 0x474A524E;     // "GJRN"
+    private static final int VERSION = 1;
+    private static final String OBJECT = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER_OBJECT = "fedcba9876543210fedcba9876543210";
+
+    private boolean created;                         // True once this test made the folder
+    private String first;
+    private String second;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeFalse(Util.fileExists(Gitlet.GITLET_DIR));
+        created = Util.createDirectory(Gitlet.GITLET_DIR);
+        CommitLog.reset();
+        ObjectStore.reloadPacks();
+        first = Gitlet.GITLET_DIR + "/first";
+        second = Gitlet.GITLET_DIR + "/second";
+        write(first, "old first");
+        write(second, "old second");
+    }
+
+    @After
+    public void tearDown() {
+        Journal.abort();
+        if (created) {
+            Util.deleteRecursively(new File(Gitlet.GITLET_DIR));
+        }
+        CommitLog.reset();
+        ObjectStore.reloadPacks();
+    }
+
+    @Test
+    public void commitWritesEveryTarget() throws IOException {
+        Journal.begin();
+        Journal.write(first, bytes("new first"));
+        Journal.write(second, bytes("new second"));
+        assertEquals("old first", read(first)); // kept in memory until commit
+        assertArrayEquals(bytes("new first"), Journal.read(first));
+        assertTrue(Journal.commit());
+        assertEquals("new first", read(first));
+        assertEquals("new second", read(second));
+        assertFalse(new File(Journal.getPath()).exists());
+        assertFalse(new File(first + ".tmp").exists());
+    }
+
+    @Test
+    public void failedTransactionKeepsTargets() throws IOException {
+        Journal.begin();
+        Journal.write(first, bytes("new first"));
+        Journal.fail(new IOException("lost write, expected by this test"));
+        assertFalse(Journal.commit());
+        assertEquals("old first", read(first));
+        assertFalse(new File(first + ".tmp").exists());
+    }
+
+    /**
+     * Objects stored in a transaction end up together in a single pack.
+     */
+    @Test
+    public void commitStoresObjectsInOnePack() throws IOException {
+        Journal.begin();
+        ObjectStore.put(OBJECT, bytes("object"));
+        ObjectStore.put(OTHER_OBJECT, bytes("other object"));
+        assertTrue(ObjectStore.getPacks().isEmpty()); // listed only once committed
+        assertArrayEquals(bytes("object"), ObjectStore.read(OBJECT));
+        assertTrue(Journal.commit());
+        assertEquals(1, ObjectStore.getPacks().size());
+        assertFalse(ObjectStore.isLoose(OBJECT));
+        assertArrayEquals(bytes("other object"), ObjectStore.read(OTHER_OBJECT));
+    }
+
+    @Test
+    public void abortDiscardsStoredObjects() throws IOException {
+        Journal.begin();
+        ObjectStore.put(OBJECT, bytes("object"));
+        Journal.abort();
+        assertFalse(ObjectStore.contains(OBJECT));
+        assertTrue(ObjectStore.getPacks().isEmpty());
+    }
+
+    /**
+     * Died after the journal was written, before any target was replaced.
+     */
+    @Test
+    public void recoverFinishesCompleteJournal() throws IOException {
+        write(first + ".tmp", "new first");
+        write(second + ".tmp", "new second");
+        writeJournal(false);
+        Journal.recover();
+        assertEquals("new first", read(first));
+        assertEquals("new second", read(second));
+        assertFalse(new File(Journal.getPath()).exists());
+    }
+
+    /**
+     * Died after the first target was replaced. Recovering again after
+     * another crash must not change the outcome.
+     */
+    @Test
+    public void recoverFinishesPartlyReplayedJournal() throws IOException {
+        write(first, "new first");
+        write(second + ".tmp", "new second");
+        writeJournal(false);
+        Journal.recover();
+        Journal.recover();
+        assertEquals("new first", read(first));
+        assertEquals("new second", read(second));
+    }
+
+    /**
+     * Died while writing the journal, so no target may change.
+     */
+    @Test
+    public void recoverIgnoresTornJournal() throws IOException {
+        write(first + ".tmp", "new first");
+        write(second + ".tmp", "new second");
+        writeJournal(true);
+        Journal.recover();
+        assertEquals("old first", read(first));
+        assertEquals("old second", read(second));
+        assertFalse(new File(Journal.getPath()).exists());
+    }
+
+    /**
+     * Died after appending to a commit log whose refs were never saved, so
+     * none of its records belong to the history.
+     */
+    @Test
+    public void recoverCutsOffUnsavedLog() {
+        CommitLog.append(new Commit(0, "initial commit", -1, 0L, "master"));
+        assertTrue(new File(CommitLog.getLogPath()).length() > 0);
+        Journal.recover();
+        assertEquals(0, new File(CommitLog.getLogPath()).length());
+    }
+
+    /**
+     * Writes a journal naming both targets, without its checksum if TORN.
+     */
+    private void writeJournal(boolean torn) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(2);
+        out.writeUTF(first);
+        out.writeUTF(second);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        if (!torn) {
+            out.writeLong(crc.getValue());
+        }
+        try (FileOutputStream file = new FileOutputStream(Journal.getPath())) {
+            bytes.writeTo(file);
+        }
+    }
+
+    private static void write(String fileName, String content) throws IOException {
+        Files.write(Paths.get(fileName), bytes(content));
+    }
+
+    private static String read(String fileName) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}